@@ -1,6 +1,7 @@
 package org.gathe.integration;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -59,6 +60,9 @@ public interface Accessor {
     //get uuids subset for <className>, matching with <filters>
     public String[] match(String transactionId, String className, HashMap<String, String> filters, boolean explain);
 
+    //same as match, uuids are resolved one by one while iterating
+    public Iterator<String> matchIterator(String transactionId, String className, HashMap<String, String> filters, boolean explain);
+
     public boolean isModified(String transactionId, String className, String uuid);
 
     //count matching records with filters (returns string: matching/unbinded)
@@ -24,14 +24,14 @@ import javax.jms.JMSException;
 public class ActionThread extends Thread {
 
     private final Logger LOG = Logger.getLogger(this.getClass());
-    private final int timeout;
+    private final long timeout;         //milliseconds, prolonged by every waiting notify
     private boolean accepted;
     private final String action;
     private boolean flags;
     private Connector connector;
     private org.apache.qpid.amqp_1_0.jms.TextMessage textMessage;
 
-    public ActionThread(String action, Connector connector, org.apache.qpid.amqp_1_0.jms.TextMessage tm, int timeout) {
+    public ActionThread(String action, Connector connector, org.apache.qpid.amqp_1_0.jms.TextMessage tm, long timeout) {
         this.timeout = timeout;
         this.action = action;
         this.accepted = false;
@@ -64,9 +64,9 @@ public class ActionThread extends Thread {
             } catch (JMSException e) {
             }
             while (this.flags) {
-                LOG.debug("Sleeping for " + timeout + " seconds");
+                LOG.debug("Sleeping for " + timeout + " ms");
                 this.flags = false;
-                Thread.sleep(timeout * 1000);
+                Thread.sleep(timeout);
             }
         } catch (InterruptedException e) {
             LOG.debug("Action thread terminated");
@@ -1,7 +1,9 @@
 package org.gathe.integration;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -29,6 +31,11 @@ public abstract class BaseAccessor extends Thread implements Accessor {
         return new String[0];
     }
 
+    @Override
+    public Iterator<String> matchIterator(String transactionId, String className, HashMap<String, String> filters, boolean explain) {
+        return Arrays.asList(match(transactionId, className, filters, explain)).iterator();
+    }
+
     @Override
     public List<DataClass> getSchema() {
         return new ArrayList<DataClass>();
@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.StringWriter;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This program is free software: you can redistribute it and/or modify
@@ -63,7 +64,18 @@ public class BasicConnector extends Thread implements Connector {
     //    private Accessor accessor;
     private Logger LOG = Logger.getLogger(this.getClass());
     private ConcurrentHashMap<String, String> getResponse = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, HashMap<String, String>> pageResponse = new ConcurrentHashMap<>();      //cursor properties of match pages
     private ConcurrentHashMap<String, Thread> responseThreads = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();        //action -> dispatcher round trip
+    private final long defaultTimeout = Long.getLong("connector.timeout", 5000);
+    private final double timeoutPercentile = Double.parseDouble(System.getProperty("connector.timeout.percentile", "99"));
+    private final double timeoutMargin = Double.parseDouble(System.getProperty("connector.timeout.margin", "1.5"));
+    //dispatcher answers (maybe partially) by its own deadline (timeout.default, 3000), connector doesn't give up earlier
+    private final long timeoutFloor = Long.getLong("connector.timeout.floor", 3000);
+    private final long timeoutCeiling = Long.getLong("connector.timeout.ceiling", 30000);
+    private final long timeoutSamples = Long.getLong("connector.timeout.samples", 20);
+    private ChunkAssembler chunkAssembler = new ChunkAssembler();
+    private ChunkedSender sender;
     private ConcurrentHashMap<String, HashMap<String, String>> updatePatches = new ConcurrentHashMap<>();
     //    List<DataClass> schema = new ArrayList<>();
     private boolean isDisconnected;
@@ -75,6 +87,20 @@ public class BasicConnector extends Thread implements Connector {
         this.readOnly = readOnly;
         connectESB();
 
+        sender = new ChunkedSender("sender-" + id, new ChunkedSender.Transport() {
+            @Override
+            public TextMessage createTextMessage() throws JMSException {
+                return session.createTextMessage();
+            }
+
+            @Override
+            public void send(TextMessage message) throws JMSException {
+                message.setDurable(true);
+                uno.send(message);
+            }
+        }, Integer.getInteger("connector.chunk.size", ChunkedSender.DEFAULT_CHUNK_SIZE), 10000);
+        sender.start();
+
         if (!readOnly) {
             Thread modificationThread = new ModificationThread();
             modificationThread.start();        //running parallel modification thread
@@ -91,9 +117,46 @@ public class BasicConnector extends Thread implements Connector {
     }
 
     protected String joinStrings(String glue, String[] array) {
-        String line = "";
-        for (String s : array) line += s + glue;
-        return (array.length == 0) ? line : line.substring(0, line.length() - glue.length());
+        return joinStrings(glue, Arrays.asList(array).iterator());
+    }
+
+    protected String joinStrings(String glue, Iterator<String> values) {
+        StringBuilder line = new StringBuilder();
+        while (values.hasNext()) {
+            line.append(values.next());
+            if (values.hasNext()) line.append(glue);
+        }
+        return line.toString();
+    }
+
+    private LatencyHistogram getLatency(String action) {
+        LatencyHistogram histogram = latencies.get(action);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(10000);
+            histogram = latencies.putIfAbsent(action, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    //timed out round trip is a sample at its deadline, so the percentile isn't computed over fast answers only
+    //and the deadline grows (by margin) when timeouts become frequent
+    private void recordRoundTrip(String action, long started, boolean accepted) {
+        LatencyHistogram histogram = getLatency(action);
+        if (!accepted) histogram.timeout();
+        histogram.record(System.currentTimeMillis() - started);
+    }
+
+    //response deadline follows observed round trips of action, default is used until there are enough samples
+    public long getActionTimeout(String action) {
+        LatencyHistogram histogram = latencies.get(action);
+        if (histogram == null || histogram.getCount() < timeoutSamples) return defaultTimeout;
+        long timeout = (long) (histogram.getPercentile(timeoutPercentile) * timeoutMargin);
+        return Math.min(Math.max(timeout, timeoutFloor), timeoutCeiling);
+    }
+
+    public Map<String, LatencyHistogram> getLatencies() {
+        return new TreeMap<>(latencies);
     }
 
     @Override
@@ -170,62 +233,13 @@ public class BasicConnector extends Thread implements Connector {
         this.start();
     }
 
-    private void sendChunk(TextMessage textMessage, String chunk, int number, int count) {
-        LOG.debug("Sending chunk for " + textMessage + " data length: " + chunk.length() + " " + number + "/" + count);
-        boolean sent = false;
-        synchronized (uno) {
-            while (!sent) {
-                try {
-                    textMessage.setIntProperty("number", number);
-                    textMessage.setIntProperty("count", count);
-                    textMessage.setText(chunk);
-                    textMessage.setDurable(true);
-                    uno.send(textMessage);
-                    LOG.debug("Sent");
-                    textMessage = null;
-                    sent = true;
-                } catch (JMSException e) {
-                    try {
-                        Thread.sleep(1000);     //just wait for reconnection
-                    } catch (Exception e2) {
-                    }
-                }
-            }
-        }
-    }
-
     public void sendToUno(TextMessage textMessage, String content) throws JMSException {
-
         LOG.debug("Content: [" + content + "]");
-        if (content.isEmpty()) {
-            sendChunk(textMessage, "", 0, 1);
-        }
-
-        int chunkSize = 16384;          //todo: define as parameter
-
-        //split message
-        String subject = textMessage.getSubject();
-        HashMap<String, String> headers = new HashMap<>();
-        Enumeration<String> props = textMessage.getPropertyNames();
-        while (props.hasMoreElements()) {
-            String prop = props.nextElement();
-            headers.put(prop, textMessage.getStringProperty(prop));
-        }
+        sender.send(textMessage, content);
+    }
 
-        int count = (content.length() + (chunkSize - 1)) / chunkSize;
-        for (int number = 0; number < count; number++) {
-            TextMessage tm = this.session.createTextMessage();
-            tm.setSubject(subject);
-            for (String headerName : headers.keySet()) {
-                tm.setStringProperty(headerName, headers.get(headerName));
-            }
-            int maxLimit = (number + 1) * chunkSize;
-            if (maxLimit > content.length()) maxLimit = content.length();
-            LOG.debug("Sending chunk " + number + "/" + count + " Subject: " + subject + " Length: " + (maxLimit - (number * chunkSize)));
-            sendChunk(tm, content.substring(number * chunkSize, maxLimit), number, count);
-            tm = null;
-        }
-        LOG.debug("Message sent");
+    public ChunkedSender getSender() {
+        return sender;
     }
 
     //aux method - send text message to dispatcher with specified subject and content
@@ -443,13 +457,12 @@ public class BasicConnector extends Thread implements Connector {
         if (stored) selfTransactions.add(transactionId + ":" + className);
         String result;
         if (!isLocalRequest) {
-            result = this.doMatchAction("matchAll", transactionId, className, filters, async);
+            result = this.doMatchAction("matchAll", transactionId, UUID.randomUUID().toString(), className, filters, null, async);
         } else {
             Accessor accessor = this.getAccessor(className);
             LOG.debug("Classname is " + className + " accessor: " + accessor);
             if (accessor instanceof DBAccessor) LOG.debug("DBAccessor");
-            String[] results = accessor.match(transactionId, className, filters, false);
-            result = this.joinStrings(",", results);
+            result = this.joinStrings(",", accessor.matchIterator(transactionId, className, filters, false));
         }
         if (stored) selfTransactions.remove(transactionId + ":" + className);
         return result;
@@ -560,13 +573,37 @@ public class BasicConnector extends Thread implements Connector {
         return this.matchAll(null, className, filters, false, false);
     }
 
+    @Override
+    public MatchIterator matchIterator(String className, HashMap<String, String> filters, int pageSize, boolean isLocalRequest) throws JMSException {
+        if (isLocalRequest) {
+            final Iterator<String> matched = this.getAccessor(className).matchIterator(null, className, filters, false);
+            return new MatchIterator() {
+                @Override
+                public boolean hasNext() {
+                    return matched.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return matched.next();
+                }
+            };
+        }
+        return new MatchPages(className, filters, pageSize);
+    }
+
+    @Override
+    public MatchIterator matchIterator(String className, HashMap<String, String> filters, int pageSize) throws JMSException {
+        return this.matchIterator(className, filters, pageSize, false);
+    }
+
     @Override
     public boolean isSelfRequest(String transactionId, String className) {
         LOG.debug("Self Request pool: " + this.selfTransactions);
         return this.selfTransactions.contains(transactionId + ":" + className);
     }
 
-    private String doMatchAction(String action, String transactionId, String className, HashMap<String, String> filters, boolean async) throws JMSException {
+    private String doMatchAction(String action, String transactionId, String messageId, String className, HashMap<String, String> filters, HashMap<String, String> properties, boolean async) throws JMSException {
         while (!activated) {
             try {
                 LOG.debug("Waiting for activation " + id);
@@ -575,7 +612,6 @@ public class BasicConnector extends Thread implements Connector {
             }
         }
         if (transactionId == null) transactionId = UUID.randomUUID().toString();
-        String messageId = UUID.randomUUID().toString();
         TextMessage matchMessage = session.createTextMessage();
         matchMessage.setReplyTo(this.id);
         matchMessage.setStringProperty("messageId", messageId);
@@ -584,17 +620,23 @@ public class BasicConnector extends Thread implements Connector {
         for (String filterKey : filters.keySet()) {
             matchMessage.setStringProperty("filter-" + filterKey, filters.get(filterKey));
         }
+        if (properties != null) {
+            for (String propertyKey : properties.keySet()) {
+                matchMessage.setStringProperty(propertyKey, properties.get(propertyKey));
+            }
+        }
 
         matchMessage.setSubject(action + "." + className);
         matchMessage.setStringProperty("uuid", "");
         LOG.debug("Message sent. Reply to " + this.id + " messageId=" + messageId + " transaction=" + transactionId + " subject:" + action + "." + className);
 
 //        if (true) {
-        ActionThread actionThread = new ActionThread(action, this, matchMessage, 5);
+        ActionThread actionThread = new ActionThread(action, this, matchMessage, getActionTimeout(action));
         LOG.debug("Stored to " + messageId + " ActionThread: " + actionThread);
         responseThreads.put(messageId, actionThread);
         boolean accepted;
 
+        long started = System.currentTimeMillis();
         try {
             actionThread.start();
             actionThread.join();
@@ -602,12 +644,16 @@ public class BasicConnector extends Thread implements Connector {
         }
         accepted = actionThread.isAccepted();
         LOG.debug("Response accepted: " + accepted);
+        recordRoundTrip(action, started, accepted);
+        //late response is not stored after this
+        responseThreads.remove(messageId);
         if (accepted) {
             String result = getResponse.get(messageId);
             getResponse.remove(messageId);
-            responseThreads.remove(messageId);
             return result;
         }
+        getResponse.remove(messageId);
+        pageResponse.remove(messageId);
 //        } else {
 //            responseThreads.put(messageId, null);
 //            return messageId;
@@ -634,11 +680,12 @@ public class BasicConnector extends Thread implements Connector {
         getMessage.setStringProperty((uuidCommands.contains(action.toLowerCase()) ? "uuid" : "id"), identifierValue);
         LOG.debug("Message sent. Reply to " + this.id + " messageId=" + messageId + " transaction=" + transactionId + " subject:" + action + "." + className + ((suffix != null) ? "." + suffix : "") + " identifier: " + identifierValue);
 
-        ActionThread actionThread = new ActionThread(action, this, getMessage, 5);
+        ActionThread actionThread = new ActionThread(action, this, getMessage, getActionTimeout(action));
         LOG.debug("Stored to " + messageId + " ActionThread: " + actionThread);
         responseThreads.put(messageId, actionThread);
         boolean accepted;
 
+        long started = System.currentTimeMillis();
         try {
             actionThread.start();
             actionThread.join();
@@ -647,6 +694,7 @@ public class BasicConnector extends Thread implements Connector {
 
         accepted = actionThread.isAccepted();
         LOG.debug("Response accepted: " + accepted);
+        recordRoundTrip(action, started, accepted);
         if (accepted) {
             String result = getResponse.get(messageId);
             getResponse.remove(messageId);
@@ -656,13 +704,16 @@ public class BasicConnector extends Thread implements Connector {
         return "";
     }
 
+    public ChunkAssembler getChunkAssembler() {
+        return chunkAssembler;
+    }
+
     public void run() {
 
         System.out.println("\033]0;" + this.id + "\007");
         LOG.info("Primary message loop initialized");
 
         isDisconnected = false;
-        HashMap<String, String> chunks = new HashMap<>();
 
         Boolean checkForEchoResponse = false;
         String echoMessageId = UUID.randomUUID().toString();
@@ -855,28 +906,38 @@ public class BasicConnector extends Thread implements Connector {
 
                                 int number = textMessage.getIntProperty("number");
                                 int count = textMessage.getIntProperty("count");
-                                if (!chunks.containsKey(messageId)) {
-                                    chunks.put(messageId, "");
-                                }
-
                                 LOG.debug("Accepted " + number + "/" + count);
-                                chunks.put(messageId, chunks.get(messageId) + textMessage.getText());
-                                LOG.debug("Chunk length for " + messageId + " is " + chunks.get(messageId).length());
-                                if (number < count - 1) {
-                                    ((ActionThread) (responseThreads.get(messageId))).needContinue(true);
+                                ChunkAssembler.Result assembled = chunkAssembler.add(messageId, number, count, textMessage.getText());
+                                if (assembled.status != ChunkAssembler.COMPLETE) {
+                                    //only accepted chunk prolongs waiting, dropped response ends by timeout
+                                    ActionThread waitingThread = (ActionThread) responseThreads.get(messageId);
+                                    if (assembled.status == ChunkAssembler.PENDING && waitingThread != null) waitingThread.needContinue(true);
                                     textMessage.acknowledge();
                                     continue;
                                 }
+                                String content = assembled.content;
                                 LOG.debug("Mission completed");
-                                String content = chunks.get(messageId);
-                                chunks.remove(messageId);
 
                                 if (responseThreads.containsKey(messageId)) {
                                     if (responseThreads.get(messageId) != null) {
+                                        if (textMessage.getStringProperty("cursor") != null) {
+                                            HashMap<String, String> page = new HashMap<>();
+                                            page.put("cursor", textMessage.getStringProperty("cursor"));
+                                            page.put("next", textMessage.getStringProperty("next"));
+                                            page.put("expired", textMessage.getStringProperty("expired"));
+                                            pageResponse.put(messageId, page);
+                                        }
                                         getResponse.put(messageId, content);
-                                        ((ActionThread) (responseThreads.get(messageId))).needContinue(false);
-                                        LOG.debug("Terminating thread " + responseThreads.get(messageId));
-                                        responseThreads.get(messageId).interrupt();
+                                        Thread waitingThread = responseThreads.get(messageId);
+                                        if (waitingThread == null) {
+                                            //requester gave up meanwhile
+                                            getResponse.remove(messageId);
+                                            pageResponse.remove(messageId);
+                                        } else {
+                                            ((ActionThread) waitingThread).needContinue(false);
+                                            LOG.debug("Terminating thread " + waitingThread);
+                                            waitingThread.interrupt();
+                                        }
                                     }
                                 }
                             }
@@ -941,8 +1002,6 @@ public class BasicConnector extends Thread implements Connector {
 
         public void run() {
 
-            HashMap<String, String> chunks = new HashMap<>();
-
             while (!isDisconnected) {
                 try {
                     while (!activated) {
@@ -978,20 +1037,14 @@ public class BasicConnector extends Thread implements Connector {
 
                             int number = textMessage.getIntProperty("number");
                             int count = textMessage.getIntProperty("count");
-                            if (!chunks.containsKey(messageId)) {
-                                chunks.put(messageId, "");
-                            }
-
                             LOG.debug("Accepted " + number + "/" + count);
-                            chunks.put(messageId, chunks.get(messageId) + textMessage.getText());
-                            LOG.debug("Chunk length for " + messageId + " is " + chunks.get(messageId).length());
-                            if (number < count - 1) {
+                            ChunkAssembler.Result assembled = chunkAssembler.add(messageId, number, count, textMessage.getText());
+                            if (assembled.status != ChunkAssembler.COMPLETE) {
                                 textMessage.acknowledge();
                                 continue;
                             }
+                            String data = assembled.content;
                             LOG.debug("Mission completed (for update)");
-                            String data = chunks.get(messageId);
-                            chunks.remove(messageId);
 
                             String transactionId = textMessage.getStringProperty("transactionId");
                             String uuid = textMessage.getStringProperty("uuid");
@@ -1109,9 +1162,10 @@ public class BasicConnector extends Thread implements Connector {
             try {
                 TextMessage textMessage = session.createTextMessage();
                 textMessage.setSubject("bye." + id);
-                sendToUno(textMessage, "");
+                sender.send(textMessage, "").get(5, TimeUnit.SECONDS);
             } catch (Exception e) {
             }
+            sender.shutdown();
             isDisconnected = true;
             LOG.info("Graceful shutdown");
         }
@@ -1256,14 +1310,13 @@ public class BasicConnector extends Thread implements Connector {
                         sendToUno(response, scanResult);
                         break;
                     case "seek":
-                        String[] result = accessor.match(transactionId, className, filters, explain);
-                        String stringResult = joinStrings(",", result);
                         response = session.createTextMessage();
                         response.setStringProperty("messageId", sourceMessage.getStringProperty("messageId"));
                         response.setStringProperty("transactionId", transactionId);
                         response.setSubject("matchResponse." + id);
                         LOG.debug("Sending response. Subject: " + "matchResponse." + id + " TR: " + transactionId);
-                        sendToUno(response, stringResult);
+                        //uuids are sent chunk by chunk while accessor iterates, result is never joined here
+                        sender.send(new ChunkedSender.HeaderTemplate(response), accessor.matchIterator(transactionId, className, filters, explain), ",");
                         break;
                 }
             } catch (JMSException e) {
@@ -1272,6 +1325,74 @@ public class BasicConnector extends Thread implements Connector {
         }
     }
 
+    //paged matchAll: first page opens cursor at dispatcher, next ones are fetched by cursor when previous page is consumed
+    class MatchPages implements MatchIterator {
+        private final String transactionId = UUID.randomUUID().toString();
+        private final String className;
+        private final int pageSize;
+        private String cursor;
+        private int next = 0;           //offset of next page, -1 when no more pages
+        private String[] page = new String[0];
+        private int position = 0;
+        private final int pageRetries = Integer.getInteger("connector.match.retries", 2);
+
+        public MatchPages(String className, HashMap<String, String> filters, int pageSize) throws JMSException {
+            this.className = className;
+            this.pageSize = pageSize;
+            fetch("matchAll", filters);
+        }
+
+        private void fetch(String action, HashMap<String, String> filters) throws JMSException {
+            HashMap<String, String> properties = new HashMap<>();
+            properties.put("pageSize", "" + pageSize);
+            if (cursor != null) {
+                properties.put("cursor", cursor);
+                properties.put("offset", "" + next);
+            }
+            String content = null;
+            HashMap<String, String> response = null;
+            //page is requested again when it is lost, cursor is kept at dispatcher till it expires
+            for (int attempt = 0; attempt <= pageRetries; attempt++) {
+                String messageId = UUID.randomUUID().toString();
+                content = doMatchAction(action, transactionId, messageId, className, filters, properties, false);
+                response = pageResponse.remove(messageId);
+                if (response != null || cursor == null) break;
+                LOG.error("Match page " + next + " of " + className + " is not received (attempt " + (attempt + 1) + ")");
+            }
+            if (response == null && cursor != null) {
+                throw new JMSException("Match page " + next + " of " + className + " is not received");
+            }
+            page = (content == null || content.isEmpty()) ? new String[0] : content.split(",");
+            position = 0;
+            if (response == null) {
+                //not paged, content is the whole result
+                next = -1;
+                return;
+            }
+            if ("true".equals(response.get("expired"))) {
+                throw new JMSException("Match cursor " + cursor + " of " + className + " is expired at offset " + next);
+            }
+            cursor = response.get("cursor");
+            String nextOffset = response.get("next");
+            next = (nextOffset == null || nextOffset.isEmpty()) ? -1 : Integer.parseInt(nextOffset);
+        }
+
+        @Override
+        public boolean hasNext() throws JMSException {
+            while (position >= page.length) {
+                if (next < 0) return false;
+                fetch("matchPage", new HashMap<String, String>());
+            }
+            return true;
+        }
+
+        @Override
+        public String next() throws JMSException {
+            if (!hasNext()) throw new NoSuchElementException();
+            return page[position++];
+        }
+    }
+
     class ValidateThread extends AsyncThread {
         String uuid;
         String className;
@@ -0,0 +1,267 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import org.apache.log4j.Logger;
+import org.apache.qpid.amqp_1_0.jms.TextMessage;
+
+import javax.jms.JMSException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits message content into chunks (number/count properties) and sends them from own thread,
+ * so producer is owned by one thread and callers don't wait for the bus.
+ * Chunks are views over the source string, text is copied only when chunk message is built.
+ * Chunk size may be defined per destination (message subject). Joined values may be streamed: chunks are sent
+ * while iterating (count is ChunkAssembler.MORE in all chunks but the last one), so whole content is never built.
+ * Dispatcher and connector are built separately, each has a copy of this class and both are kept identical.
+ */
+public class ChunkedSender extends Thread {
+
+    private static Logger LOG = Logger.getLogger("ChunkedSender");
+
+    public static final int DEFAULT_CHUNK_SIZE = 16384;
+
+    public interface Transport {
+        TextMessage createTextMessage() throws JMSException;
+
+        void send(TextMessage message) throws JMSException;
+    }
+
+    private final Transport transport;
+    private final LinkedBlockingQueue<Chunk> queue;
+    private final ConcurrentHashMap<String, Integer> chunkSizes = new ConcurrentHashMap<>();
+    private volatile int defaultChunkSize;
+    private volatile boolean stopped = false;
+
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicLong sentChunks = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public ChunkedSender(String name, Transport transport, int defaultChunkSize, int queueSize) {
+        super(name);
+        setDaemon(true);
+        this.transport = transport;
+        this.defaultChunkSize = (defaultChunkSize > 0) ? defaultChunkSize : DEFAULT_CHUNK_SIZE;
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+    }
+
+    public void setChunkSize(String destination, int chunkSize) {
+        if (chunkSize > 0) chunkSizes.put(destination, chunkSize);
+    }
+
+    public void setDefaultChunkSize(int chunkSize) {
+        if (chunkSize > 0) defaultChunkSize = chunkSize;
+    }
+
+    public int getChunkSize(String destination) {
+        Integer size = (destination != null) ? chunkSizes.get(destination) : null;
+        return (size != null) ? size : defaultChunkSize;
+    }
+
+    public CompletableFuture<Void> send(TextMessage message, String content) throws JMSException {
+        return send(new HeaderTemplate(message), content);
+    }
+
+    //future is completed when last chunk is sent
+    public CompletableFuture<Void> send(HeaderTemplate template, String content) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (content == null) content = "";
+        int chunkSize = getChunkSize(template.subject);
+        int count = content.isEmpty() ? 1 : (content.length() + (chunkSize - 1)) / chunkSize;
+        try {
+            for (int number = 0; number < count; number++) {
+                int start = number * chunkSize;
+                int end = Math.min(start + chunkSize, content.length());
+                queue.put(new Chunk(template, CharBuffer.wrap(content, start, end), number, count, (number == count - 1) ? done : null));
+            }
+        } catch (InterruptedException e) {
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    //future is completed when last chunk is sent, or failed when iteration fails (message is left incomplete)
+    public CompletableFuture<Void> send(HeaderTemplate template, Iterator<String> values, String glue) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        int chunkSize = getChunkSize(template.subject);
+        StringBuilder buffer = new StringBuilder();
+        String held = null;             //full chunk, sent when it is known whether it is the last one
+        int number = 0;
+        try {
+            boolean first = true;
+            while (values.hasNext()) {
+                if (!first) buffer.append(glue);
+                buffer.append(values.next());
+                first = false;
+                while (buffer.length() >= chunkSize) {
+                    if (held != null) queue.put(new Chunk(template, held, number++, ChunkAssembler.MORE, null));
+                    held = buffer.substring(0, chunkSize);
+                    buffer.delete(0, chunkSize);
+                }
+            }
+            if (held != null && buffer.length() > 0) {
+                queue.put(new Chunk(template, held, number++, ChunkAssembler.MORE, null));
+                held = null;
+            }
+            String last = (held != null) ? held : buffer.toString();
+            queue.put(new Chunk(template, last, number, number + 1, done));
+        } catch (InterruptedException e) {
+            done.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            LOG.error("Error when streaming message " + template.subject + ": " + e.getMessage());
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    public long getSentChunks() {
+        return sentChunks.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    //queued chunks are still sent before thread exits
+    public void shutdown() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        while (!stopped || !queue.isEmpty()) {
+            Chunk chunk;
+            try {
+                chunk = queue.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (chunk == null) continue;
+            if (sendChunk(chunk)) {
+                sentChunks.incrementAndGet();
+                if (chunk.done != null) {
+                    sentMessages.incrementAndGet();
+                    chunk.done.complete(null);
+                }
+            } else if (chunk.done != null) {
+                chunk.done.completeExceptionally(new JMSException("Sender is stopped"));
+            }
+        }
+        LOG.info("Chunked sender " + getName() + " stopped");
+    }
+
+    private boolean sendChunk(Chunk chunk) {
+        TextMessage textMessage = null;
+        while (true) {
+            try {
+                if (textMessage == null) {
+                    textMessage = transport.createTextMessage();
+                    chunk.template.apply(textMessage);
+                    textMessage.setIntProperty("number", chunk.number);
+                    textMessage.setIntProperty("count", chunk.count);
+                    textMessage.setText(chunk.data.toString());
+                }
+                transport.send(textMessage);
+                return true;
+            } catch (JMSException e) {
+                failures.incrementAndGet();
+                LOG.error("Send error: " + e.getErrorCode() + ": " + e.getLocalizedMessage());
+                if (stopped) return false;
+                textMessage = null;          //session may be replaced on reconnection
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e2) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Subject and string properties of message, captured once and applied to every chunk.
+     */
+    public static class HeaderTemplate {
+        private final String subject;
+        private final String[] names;
+        private final String[] values;
+
+        public HeaderTemplate(TextMessage message) throws JMSException {
+            this.subject = message.getSubject();
+            ArrayList<String> propertyNames = new ArrayList<>();
+            Enumeration<?> props = message.getPropertyNames();
+            while (props.hasMoreElements()) {
+                String prop = (String) props.nextElement();
+                if (prop.equals("number") || prop.equals("count")) continue;
+                propertyNames.add(prop);
+            }
+            names = propertyNames.toArray(new String[0]);
+            values = new String[names.length];
+            for (int i = 0; i < names.length; i++) values[i] = message.getStringProperty(names[i]);
+        }
+
+        public HeaderTemplate(String subject, Map<String, String> headers) {
+            this.subject = subject;
+            names = headers.keySet().toArray(new String[0]);
+            values = new String[names.length];
+            for (int i = 0; i < names.length; i++) values[i] = headers.get(names[i]);
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        void apply(TextMessage message) throws JMSException {
+            message.setSubject(subject);
+            for (int i = 0; i < names.length; i++) message.setStringProperty(names[i], values[i]);
+        }
+    }
+
+    private static class Chunk {
+        final HeaderTemplate template;
+        final CharSequence data;
+        final int number;
+        final int count;
+        final CompletableFuture<Void> done;
+
+        Chunk(HeaderTemplate template, CharSequence data, int number, int count, CompletableFuture<Void> done) {
+            this.template = template;
+            this.data = data;
+            this.number = number;
+            this.count = count;
+            this.done = done;
+        }
+    }
+}
@@ -83,5 +83,10 @@ public interface Connector extends Runnable {
 
     String matchAll(String className, HashMap<String, String> filters) throws JMSException;
 
+    //matched uuids fetched by pages of pageSize, next page is requested when iterator reaches it
+    MatchIterator matchIterator(String className, HashMap<String, String> filters, int pageSize, boolean isLocalRequest) throws JMSException;
+
+    MatchIterator matchIterator(String className, HashMap<String, String> filters, int pageSize) throws JMSException;
+
     boolean isSelfRequest(String transactionId, String className);
 }
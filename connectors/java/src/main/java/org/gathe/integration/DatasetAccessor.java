@@ -11,7 +11,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 
@@ -115,6 +117,12 @@ public abstract class DatasetAccessor extends BaseAccessor {
 
     protected abstract ArrayList<HashMap<String, String>> getDataset(String transactionId, String className);
 
+    //rows of dataset as they are read, accessor may override it to avoid loading whole dataset
+    protected Iterator<HashMap<String, String>> getDatasetIterator(String transactionId, String className) {
+        ArrayList<HashMap<String, String>> data = getDataset(transactionId, className);
+        return (data != null) ? data.iterator() : Collections.<HashMap<String, String>>emptyIterator();
+    }
+
     /**
      * Get Hash by UUID value
      *
@@ -272,20 +280,41 @@ public abstract class DatasetAccessor extends BaseAccessor {
      */
     @Override
     public String[] match(String transactionId, String className, HashMap<String, String> filters, boolean explain) {
+        ArrayList<String> uuids = new ArrayList<>();
+        Iterator<String> matched = matchIterator(transactionId, className, filters, explain);
+        while (matched.hasNext()) uuids.add(matched.next());
+        return uuids.toArray(new String[0]);
+    }
+
+    /**
+     * Scanning for matched entries, row is read, transformed and its uuid resolved only when iterator reaches it
+     *
+     * @param transactionId transaction identifier
+     * @param className     classname
+     * @param filters       filters set
+     * @return uuids iterator
+     */
+    @Override
+    public Iterator<String> matchIterator(final String transactionId, final String className, HashMap<String, String> filters, boolean explain) {
 
         //search for all entries
         //data[identifier] -> uuid
         String[] idents = identifiers.keySet().toArray(new String[0]);
-        String identifierName = idents[0];
+        final String identifierName = idents[0];
         LOG.debug("Identifier: " + identifierName);
-        ArrayList<String> uuids = new ArrayList<>();
-        ArrayList<HashMap<String, String>> data = this.getDataset(transactionId, className);
-        for (int i = 0; i < data.size(); i++) {
-            HashMap<String, String> row = transform(data.get(i));
-            String uuid = getUuidByIdentifier(transactionId, className, identifierName, row.get("#" + identifierName), true);
-            uuids.add(uuid);
-        }
-        return uuids.toArray(new String[0]);
+        final Iterator<HashMap<String, String>> data = this.getDatasetIterator(transactionId, className);
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return data.hasNext();
+            }
+
+            @Override
+            public String next() {
+                HashMap<String, String> row = transform(data.next());
+                return getUuidByIdentifier(transactionId, className, identifierName, row.get("#" + identifierName), true);
+            }
+        };
     }
 
     /**
@@ -0,0 +1,111 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.Arrays;
+
+/**
+ * Latency histogram (milliseconds) with logarithmic buckets, each bucket bound is ~19% above previous one.
+ * When window is filled all counts are halved, so old samples fade out and percentiles follow recent latencies.
+ * Connector has the same copy of this class (dispatcher and connectors are built separately), keep them equal.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 84;
+    private static final long[] BOUNDS = new long[BUCKETS];
+
+    static {
+        for (int i = 0; i < BUCKETS; i++) BOUNDS[i] = Math.max(i + 1, Math.round(Math.pow(2, i / 4.0)));
+    }
+
+    private final long[] counts = new long[BUCKETS + 1];        //last one is overflow
+    private final long window;
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+    private long timeouts = 0;
+
+    public LatencyHistogram(long window) {
+        this.window = (window > 0) ? window : Long.MAX_VALUE;
+    }
+
+    public synchronized void record(long millis) {
+        if (millis < 0) millis = 0;
+        int bucket = Arrays.binarySearch(BOUNDS, millis);
+        if (bucket < 0) bucket = -bucket - 1;
+        counts[bucket]++;
+        count++;
+        sum += millis;
+        if (millis > max) max = millis;
+        if (count >= window) {
+            count = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] /= 2;
+                count += counts[i];
+            }
+            sum /= 2;
+        }
+    }
+
+    public synchronized void timeout() {
+        timeouts++;
+    }
+
+    //upper bound of bucket holding percentile (0-100), -1 when there are no samples
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) return -1;
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return BOUNDS[i];
+        }
+        return max;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getAverage() {
+        return (count > 0) ? sum / count : 0;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    //copy of bucket counts, the last one is overflow
+    public synchronized long[] getCounts() {
+        return counts.clone();
+    }
+
+    //upper bounds of buckets (milliseconds)
+    public static long[] getBounds() {
+        return BOUNDS.clone();
+    }
+}
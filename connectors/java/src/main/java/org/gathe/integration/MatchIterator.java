@@ -0,0 +1,32 @@
+package org.gathe.integration;
+
+import javax.jms.JMSException;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>, Nataliya Sorokina <nv@gathe.org>
+ */
+
+/**
+ * Matched uuids, fetched by pages when iteration reaches them.
+ * JMSException is thrown when the rest of result can't be received (cursor expired or evicted at dispatcher,
+ * page is not received after retries), so result is never silently truncated.
+ */
+public interface MatchIterator {
+
+    boolean hasNext() throws JMSException;
+
+    String next() throws JMSException;
+}
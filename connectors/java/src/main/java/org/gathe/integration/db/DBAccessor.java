@@ -17,8 +17,11 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * This program is free software: you can redistribute it and/or modify
@@ -202,68 +205,117 @@ public class DBAccessor extends DatasetAccessor {
         return null;
     }
 
-    @Override
-    protected ArrayList<HashMap<String, String>> getDataset(String transactionId, String className) {
+    private String datasetQuery() {
         String tableName = ((DBSchemaJAXB) schema).getTable();
-        try {
-            String activeField = ((DBSchemaJAXB) schema).getActive();
-            String q = "SELECT * FROM " + tableName;
-            for (DBJoinJAXB dbjoin : ((DBSchemaJAXB) schema).getJoin()) {
-                q += " JOIN " + dbjoin.getWith() + " ON " + tableName + "." + dbjoin.getFrom() + "=" + dbjoin.getWith() + "." + dbjoin.getTo() + "";
+        String q = "SELECT * FROM " + tableName;
+        for (DBJoinJAXB dbjoin : ((DBSchemaJAXB) schema).getJoin()) {
+            q += " JOIN " + dbjoin.getWith() + " ON " + tableName + "." + dbjoin.getFrom() + "=" + dbjoin.getWith() + "." + dbjoin.getTo() + "";
+        }
+        q += " ORDER BY " + tableName + ".ID";
+        LOG.debug("*************************************** " + q);
+        return q;
+    }
+
+    private HashMap<String, String> readRow(ResultSet rs) throws SQLException {
+        HashMap<String, String> row = new HashMap<>();
+
+        for (AccessorField field : schema.getSchemaFields()) {
+            String name = ((DBFieldJAXB) field).getName();
+            String path = this.getPath(name);
+
+            name = name.replace("[", "");
+            name = name.replace("]", "");
+            name = name.replace("`", "");
+            name = name.replace("\"", "");
+
+            if (name.startsWith("@")) {
+                String value = ((DBFieldJAXB) field).getValue();
+                if (value == null) continue;
+                row.put(path, value);
+                continue;
+            }
+
+            String fieldType = field.getType();
+            String value = "";
+            if (fieldType.equalsIgnoreCase("date")) {
+                LOG.debug("Parsing " + rs.getDate(name));
+                if (rs.getDate(name) == null) {
+                    value = null;
+                } else {
+                    LocalDate ld = rs.getDate(name).toLocalDate();
+                    LocalDateTime ldt = ld.atStartOfDay();
+                    value = ldt.atZone(ZoneId.systemDefault()).toInstant().toString();
+                }
+            } else {
+                value = rs.getString(name);
             }
-            q += " ORDER BY " + tableName + ".ID";
-            LOG.debug("*************************************** " + q);
 
+            if (value != null) row.put(path, value);
+        }
+        return row;
+    }
+
+    @Override
+    protected ArrayList<HashMap<String, String>> getDataset(String transactionId, String className) {
+        try {
             Connection connection = this.getConnection();
-            PreparedStatement ps = connection.prepareStatement(q);
+            PreparedStatement ps = connection.prepareStatement(datasetQuery());
             //+(activeField!=null?" WHERE `"+activeField+"` IS NOT NULL AND `"+activeField+"`<>0 AND `"+activeField+"`<>''":""));
             ResultSet rs = ps.executeQuery();
             ArrayList<HashMap<String, String>> result = new ArrayList<>();
 
             while (rs.next()) {
-                HashMap<String, String> row = new HashMap<>();
-
-                for (AccessorField field : schema.getSchemaFields()) {
-                    String name = ((DBFieldJAXB) field).getName();
-                    String path = this.getPath(name);
-
-                    name = name.replace("[", "");
-                    name = name.replace("]", "");
-                    name = name.replace("`", "");
-                    name = name.replace("\"", "");
-
-                    if (name.startsWith("@")) {
-                        String value = ((DBFieldJAXB) field).getValue();
-                        if (value == null) continue;
-                        row.put(path, value);
-                        continue;
-                    }
+                result.add(readRow(rs));
+            }
+            return result;
 
-                    String fieldType = field.getType();
-                    String value = "";
-                    if (fieldType.equalsIgnoreCase("date")) {
-                        LOG.debug("Parsing " + rs.getDate(name));
-                        if (rs.getDate(name) == null) {
-                            value = null;
-                        } else {
-                            LocalDate ld = rs.getDate(name).toLocalDate();
-                            LocalDateTime ldt = ld.atStartOfDay();
-                            value = ldt.atZone(ZoneId.systemDefault()).toInstant().toString();
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+        return null;
+    }
+
+    //rows are read from result set as iterator goes, statement is closed after the last one
+    @Override
+    protected Iterator<HashMap<String, String>> getDatasetIterator(String transactionId, String className) {
+        try {
+            final PreparedStatement ps = this.getConnection().prepareStatement(datasetQuery());
+            final ResultSet rs = ps.executeQuery();
+            return new Iterator<HashMap<String, String>>() {
+                private HashMap<String, String> next = advance();
+
+                private HashMap<String, String> advance() {
+                    try {
+                        if (rs.next()) return readRow(rs);
+                        ps.close();
+                    } catch (SQLException se) {
+                        LOG.error("Error when reading dataset: " + se.getMessage());
+                        try {
+                            ps.close();
+                        } catch (SQLException e) {
+                            //just ignore
                         }
-                    } else {
-                        value = rs.getString(name);
                     }
+                    return null;
+                }
 
-                    if (value != null) row.put(path, value);
+                @Override
+                public boolean hasNext() {
+                    return next != null;
                 }
-                result.add(row);
-            }
-            return result;
 
+                @Override
+                public HashMap<String, String> next() {
+                    if (next == null) throw new NoSuchElementException();
+                    HashMap<String, String> row = next;
+                    next = advance();
+                    return row;
+                }
+            };
         } catch (SQLException se) {
-            se.printStackTrace();
+            LOG.error("Error when reading dataset: " + se.getMessage());
         }
-        return null;
+        return Collections.<HashMap<String, String>>emptyIterator();
     }
 
     @Override
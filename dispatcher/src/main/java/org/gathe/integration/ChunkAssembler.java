@@ -0,0 +1,269 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reassembly of chunked bus messages (see number/count message properties).
+ * Chunks are stored by index and may arrive in any order, content is joined once when all chunks are here.
+ * Streamed message (its size is not known when sending starts) has count MORE in all chunks but the last one.
+ * Sizes are measured in characters: a message larger than maxMessageSize or overflowing maxTotalSize
+ * is dropped, partial messages without new chunks for ttl milliseconds are evicted (and reported to listener).
+ * The same class is used by dispatcher and connector, both copies are kept identical.
+ */
+public class ChunkAssembler {
+
+    private static Logger LOG = Logger.getLogger("ChunkAssembler");
+
+    public static final long DEFAULT_MESSAGE_SIZE = 64L * 1024 * 1024;
+    public static final long DEFAULT_TOTAL_SIZE = 256L * 1024 * 1024;
+    public static final long DEFAULT_TTL = 60000;
+
+    //count of streamed chunk which is not the last one
+    public static final int MORE = -1;
+    private static final int MAX_AHEAD = 1024;
+
+    //status of added chunk
+    public static final int PENDING = 0;        //chunk is accepted, message is incomplete
+    public static final int COMPLETE = 1;       //message is complete, content is whole message
+    public static final int DROPPED = 2;        //message is dropped (wrong chunk, count mismatch or limits)
+    public static final int IGNORED = 3;        //duplicate chunk or chunk of already dropped message
+
+    private static final Result PENDING_RESULT = new Result(PENDING, null);
+    private static final Result DROPPED_RESULT = new Result(DROPPED, null);
+    private static final Result IGNORED_RESULT = new Result(IGNORED, null);
+
+    private final long maxMessageSize;
+    private final long maxTotalSize;
+    private final long ttl;
+
+    private final ConcurrentHashMap<String, Partial> partials = new ConcurrentHashMap<>();
+    private final AtomicLong bufferedSize = new AtomicLong();
+    private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+    private volatile Listener listener;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong assembled = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    public ChunkAssembler() {
+        this(DEFAULT_MESSAGE_SIZE, DEFAULT_TOTAL_SIZE, DEFAULT_TTL);
+    }
+
+    public ChunkAssembler(long maxMessageSize, long maxTotalSize, long ttl) {
+        this.maxMessageSize = maxMessageSize;
+        this.maxTotalSize = maxTotalSize;
+        this.ttl = ttl;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    //whole content is returned (as COMPLETE) when last missing chunk arrives
+    public Result add(String messageId, int number, int count, String chunk) {
+        if (chunk == null) chunk = "";
+        long now = System.currentTimeMillis();
+        if (now - lastEviction.get() > ttl / 4) evictExpired();
+
+        if (count <= 1 && count != MORE && (messageId == null || !partials.containsKey(messageId))) {
+            completed.incrementAndGet();
+            return new Result(COMPLETE, chunk);
+        }
+        if (messageId == null || number < 0 || (count != MORE && number >= count)) {
+            LOG.error("Wrong chunk " + number + "/" + count + " for message " + messageId);
+            rejected.incrementAndGet();
+            return DROPPED_RESULT;
+        }
+
+        Partial partial = partials.get(messageId);
+        if (partial == null) {
+            Partial created = new Partial(count, now);
+            partial = partials.putIfAbsent(messageId, created);
+            if (partial == null) partial = created;
+        }
+
+        synchronized (partial) {
+            if (partial.closed) return IGNORED_RESULT;
+            //the last streamed chunk fixes count, streamed chunks may run only a little ahead of received ones
+            int expected = (count != MORE) ? count : partial.count;
+            if ((count != MORE && partial.count != MORE && partial.count != count)
+                    || (expected != MORE && (number >= expected || partial.hasPartsFrom(expected)))
+                    || (expected == MORE && number > partial.received + MAX_AHEAD)) {
+                LOG.error("Chunk count mismatch for message " + messageId + ": " + number + "/" + count + " (expected " + partial.count + ")");
+                drop(messageId, partial);
+                return DROPPED_RESULT;
+            }
+            partial.count = expected;
+            if (number >= partial.parts.length) partial.parts = Arrays.copyOf(partial.parts, Math.max(number + 1, partial.parts.length * 2));
+            if (partial.parts[number] != null) {
+                duplicates.incrementAndGet();
+                return IGNORED_RESULT;
+            }
+            long size = chunk.length();
+            if (partial.size + size > maxMessageSize || bufferedSize.get() + size > maxTotalSize) {
+                LOG.error("Message " + messageId + " exceeds reassembly limits, dropped");
+                drop(messageId, partial);
+                return DROPPED_RESULT;
+            }
+            partial.parts[number] = chunk;
+            partial.size += size;
+            partial.received++;
+            partial.lastUpdate = now;
+            bufferedSize.addAndGet(size);
+            if (partial.count == MORE || partial.received < partial.count) return PENDING_RESULT;
+
+            partials.remove(messageId, partial);
+            partial.closed = true;
+            bufferedSize.addAndGet(-partial.size);
+            StringBuilder content = new StringBuilder((int) Math.min(partial.size, Integer.MAX_VALUE));
+            for (int i = 0; i < partial.count; i++) content.append(partial.parts[i]);
+            partial.parts = null;
+
+            long latency = now - partial.started;
+            assembled.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            long max;
+            while (latency > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency)) ;
+            completed.incrementAndGet();
+            return new Result(COMPLETE, content.toString());
+        }
+    }
+
+    //dropped message stays as closed marker (late chunks are ignored) until ttl expires
+    private void drop(String messageId, Partial partial) {
+        partial.closed = true;
+        bufferedSize.addAndGet(-partial.size);
+        partial.size = 0;
+        partial.parts = null;
+        rejected.incrementAndGet();
+    }
+
+    public int evictExpired() {
+        long now = System.currentTimeMillis();
+        lastEviction.set(now);
+        ArrayList<String> expired = new ArrayList<>();
+        Iterator<Map.Entry<String, Partial>> iterator = partials.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Partial> entry = iterator.next();
+            Partial partial = entry.getValue();
+            synchronized (partial) {
+                if (now - partial.lastUpdate < ttl) continue;
+                iterator.remove();
+                if (partial.closed) continue;
+                LOG.info("Partial message " + entry.getKey() + " evicted (" + partial.received + "/" + ((partial.count != MORE) ? String.valueOf(partial.count) : "?") + " chunks)");
+                partial.closed = true;
+                bufferedSize.addAndGet(-partial.size);
+                partial.parts = null;
+                evicted.incrementAndGet();
+                expired.add(entry.getKey());
+            }
+        }
+        Listener current = listener;
+        if (current != null) {
+            for (String messageId : expired) current.evicted(messageId);
+        }
+        return expired.size();
+    }
+
+    public int getPending() {
+        return partials.size();
+    }
+
+    public long getBufferedSize() {
+        return bufferedSize.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    //milliseconds between first and last chunk of multi-chunk messages
+    public long getAverageLatency() {
+        long count = assembled.get();
+        return (count == 0) ? 0 : totalLatency.get() / count;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    public static class Result {
+        public final int status;
+        public final String content;        //only for COMPLETE
+
+        Result(int status, String content) {
+            this.status = status;
+            this.content = content;
+        }
+    }
+
+    public interface Listener {
+        //partial message got no new chunks for ttl and is evicted
+        void evicted(String messageId);
+    }
+
+    private static class Partial {
+        String[] parts;
+        int count;              //MORE until the last chunk of streamed message arrives
+        final long started;
+        long lastUpdate;
+        long size;
+        int received;
+        boolean closed;
+
+        Partial(int count, long now) {
+            this.count = count;
+            this.parts = new String[(count != MORE) ? count : 4];
+            this.started = now;
+            this.lastUpdate = now;
+        }
+
+        //streamed chunks were received beyond the count of the last one
+        boolean hasPartsFrom(int number) {
+            for (int i = number; i < parts.length; i++) {
+                if (parts[i] != null) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Circuit breaker per endpoint. Breaker is opened after the given number of consecutive timeouts,
+ * open endpoint is skipped when request is routed (nobody waits for it). Only requests answered by any single endpoint
+ * (identify, check) are filtered, merged ones (get, match, specify) and update/remove are sent to all endpoints.
+ * After cool-down breaker is half-open:
+ * one probe request is sent to endpoint (another one if probe is not resolved during cool-down),
+ * the first answer closes breaker and the first timeout opens it again.
+ * Methods return true when state is changed.
+ */
+public class CircuitBreakers {
+
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+
+    private final HashMap<String, Breaker> breakers = new HashMap<>();
+    private final boolean enabled;
+    private final int threshold;
+    private final long coolDown;
+    private volatile Set<String> tripped = Collections.emptySet();         //open and half-open, read without lock
+
+    public CircuitBreakers(boolean enabled, int threshold, long coolDown) {
+        this.enabled = enabled;
+        this.threshold = (threshold > 0) ? threshold : 1;
+        this.coolDown = coolDown;
+    }
+
+    private Breaker breaker(String endpointName) {
+        Breaker breaker = breakers.get(endpointName);
+        if (breaker == null) {
+            breaker = new Breaker();
+            breakers.put(endpointName, breaker);
+        }
+        return breaker;
+    }
+
+    public synchronized boolean success(String endpointName) {
+        if (!enabled) return false;
+        Breaker breaker = breaker(endpointName);
+        breaker.failures = 0;
+        if (breaker.state != HALF_OPEN) return false;       //answer to request sent before breaker was opened
+        breaker.state = CLOSED;
+        updateTripped();
+        return true;
+    }
+
+    public synchronized boolean failure(String endpointName) {
+        if (!enabled) return false;
+        Breaker breaker = breaker(endpointName);
+        breaker.failures++;
+        if (breaker.state == OPEN) return false;
+        if (breaker.state == CLOSED && breaker.failures < threshold) return false;
+        breaker.state = OPEN;
+        updateTripped();
+        return true;
+    }
+
+    //cool-down is over, endpoint may be probed
+    public synchronized boolean halfOpen(String endpointName) {
+        Breaker breaker = breakers.get(endpointName);
+        if (breaker == null || breaker.state != OPEN) return false;
+        breaker.state = HALF_OPEN;
+        breaker.probeStarted = 0;
+        updateTripped();
+        return true;
+    }
+
+    //endpoint is (re)registered or gone
+    public synchronized void reset(String endpointName) {
+        if (breakers.remove(endpointName) != null) updateTripped();
+    }
+
+    private void updateTripped() {
+        HashSet<String> result = new HashSet<>();
+        for (String endpointName : breakers.keySet()) {
+            if (breakers.get(endpointName).state != CLOSED) result.add(endpointName);
+        }
+        tripped = Collections.unmodifiableSet(result);
+    }
+
+    //endpoints request is sent to: open ones are skipped, half-open one is admitted as a single probe
+    public List<String> admit(List<String> endpoints) {
+        Set<String> current = tripped;
+        if (current.isEmpty()) return endpoints;
+        ArrayList<String> result = new ArrayList<>(endpoints.size());
+        for (String endpointName : endpoints) {
+            if (!current.contains(endpointName) || probe(endpointName)) result.add(endpointName);
+        }
+        return result;
+    }
+
+    private synchronized boolean probe(String endpointName) {
+        Breaker breaker = breakers.get(endpointName);
+        if (breaker == null || breaker.state == CLOSED) return true;
+        if (breaker.state == OPEN) return false;
+        long now = System.currentTimeMillis();
+        if (breaker.probeStarted > 0 && now - breaker.probeStarted < coolDown) return false;       //probe is in flight
+        breaker.probeStarted = now;
+        return true;
+    }
+
+    public synchronized int getState(String endpointName) {
+        Breaker breaker = breakers.get(endpointName);
+        return (breaker != null) ? breaker.state : CLOSED;
+    }
+
+    public synchronized Set<String> getOpen() {
+        HashSet<String> result = new HashSet<>();
+        for (String endpointName : breakers.keySet()) {
+            if (breakers.get(endpointName).state == OPEN) result.add(endpointName);
+        }
+        return result;
+    }
+
+    public long getCoolDown() {
+        return coolDown;
+    }
+
+    private static class Breaker {
+        int state = CLOSED;
+        int failures = 0;
+        long probeStarted = 0;
+    }
+}
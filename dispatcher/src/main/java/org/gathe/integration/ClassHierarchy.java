@@ -0,0 +1,240 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.*;
+
+/**
+ * Class hierarchy declared by registered endpoints ("extends" attribute), with interned class ids.
+ * Ancestor chains, descendant sets and nearest classes with identifier/check are computed once
+ * when registry changes (as part of RoutingIndex), so hierarchy lookups don't walk endpoint schemas.
+ */
+public class ClassHierarchy {
+
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final ArrayList<String> names = new ArrayList<>();
+    private int[] parents;
+    private int[][] ancestors;                  //chain from root to class itself
+    private BitSet[] descendants;
+    private BitSet extendable;
+    private ArrayList<HashMap<String, String>> nearestIdentifiers;     //by class id: identifier name -> nearest class having it
+    private ArrayList<HashMap<String, String>> nearestChecks;
+    private String[][] identifierNames;                        //identifiers declared for class by any endpoint
+
+    private ClassHierarchy() {
+    }
+
+    public static ClassHierarchy build(Map<String, HashMap<String, Object>> endpoints, Map<String, HashMap<String, String>> extendsData) {
+        ClassHierarchy hierarchy = new ClassHierarchy();
+        HashMap<String, String> parentNames = new HashMap<>();
+        ArrayList<String[]> declarations = new ArrayList<>();
+        HashMap<String, TreeSet<String>> identifiers = new HashMap<>();
+        HashMap<String, TreeSet<String>> checks = new HashMap<>();
+
+        for (Map.Entry<String, HashMap<String, Object>> entry : endpoints.entrySet()) {
+            HashMap<String, Object> description = entry.getValue();
+            for (String className : ((HashMap<String, Object>) description.get("schema")).keySet()) hierarchy.intern(className);
+            collect(identifiers, (HashMap<String, HashMap<String, String>>) description.get("identifiers"));
+            collect(checks, (HashMap<String, HashMap<String, String>>) description.get("checks"));
+            HashMap<String, String> extData = extendsData.get(entry.getKey());
+            if (extData == null) continue;
+            parentNames.putAll(extData);
+            for (Map.Entry<String, String> extend : extData.entrySet()) {
+                declarations.add(new String[]{extend.getKey(), extend.getValue()});
+            }
+        }
+        for (Map.Entry<String, String> extend : parentNames.entrySet()) {
+            hierarchy.intern(extend.getKey());
+            hierarchy.intern(extend.getValue());
+        }
+        for (String className : identifiers.keySet()) hierarchy.intern(className);
+        for (String className : checks.keySet()) hierarchy.intern(className);
+
+        int size = hierarchy.names.size();
+        hierarchy.parents = new int[size];
+        Arrays.fill(hierarchy.parents, -1);
+        for (Map.Entry<String, String> extend : parentNames.entrySet()) {
+            int child = hierarchy.ids.get(extend.getKey());
+            int parent = hierarchy.ids.get(extend.getValue());
+            if (child != parent) hierarchy.parents[child] = parent;
+        }
+        //endpoints may declare different parents for one class: ancestor chain follows one of them,
+        //but class is a descendant of every declared parent
+        BitSet[] declaredParents = new BitSet[size];
+        for (int id = 0; id < size; id++) declaredParents[id] = new BitSet(size);
+        for (String[] declaration : declarations) {
+            int child = hierarchy.ids.get(declaration[0]);
+            int parent = hierarchy.ids.get(declaration[1]);
+            if (child != parent) declaredParents[child].set(parent);
+        }
+
+        hierarchy.ancestors = new int[size][];
+        hierarchy.descendants = new BitSet[size];
+        hierarchy.extendable = new BitSet(size);
+        for (int id = 0; id < size; id++) hierarchy.descendants[id] = new BitSet(size);
+        for (int id = 0; id < size; id++) {
+            ArrayList<Integer> chain = new ArrayList<>();
+            BitSet visited = new BitSet(size);
+            for (int current = id; current >= 0 && !visited.get(current); current = hierarchy.parents[current]) {
+                visited.set(current);          //stop on declaration loops
+                chain.add(0, current);
+            }
+            int[] ancestors = new int[chain.size()];
+            for (int i = 0; i < ancestors.length; i++) ancestors[i] = chain.get(i);
+            hierarchy.ancestors[id] = ancestors;
+            hierarchy.extendable.or(declaredParents[id]);
+
+            BitSet reached = new BitSet(size);
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            queue.add(id);
+            while (!queue.isEmpty()) {
+                BitSet next = declaredParents[queue.poll()];
+                for (int parent = next.nextSetBit(0); parent >= 0; parent = next.nextSetBit(parent + 1)) {
+                    if (reached.get(parent) || parent == id) continue;
+                    reached.set(parent);
+                    hierarchy.descendants[parent].set(id);
+                    queue.add(parent);
+                }
+            }
+        }
+
+        hierarchy.identifierNames = new String[size][];
+        hierarchy.nearestIdentifiers = new ArrayList<>(size);
+        hierarchy.nearestChecks = new ArrayList<>(size);
+        for (int id = 0; id < size; id++) {
+            TreeSet<String> own = identifiers.get(hierarchy.names.get(id));
+            hierarchy.identifierNames[id] = (own != null) ? own.toArray(new String[0]) : new String[0];
+            hierarchy.nearestIdentifiers.add(hierarchy.nearest(id, identifiers));
+            hierarchy.nearestChecks.add(hierarchy.nearest(id, checks));
+        }
+        return hierarchy;
+    }
+
+    private static void collect(HashMap<String, TreeSet<String>> target, HashMap<String, HashMap<String, String>> declared) {
+        for (Map.Entry<String, HashMap<String, String>> entry : declared.entrySet()) {
+            TreeSet<String> names = target.get(entry.getKey());
+            if (names == null) {
+                names = new TreeSet<>();
+                target.put(entry.getKey(), names);
+            }
+            names.addAll(entry.getValue().keySet());
+        }
+    }
+
+    private int intern(String className) {
+        Integer id = ids.get(className);
+        if (id == null) {
+            id = names.size();
+            ids.put(className, id);
+            names.add(className);
+        }
+        return id;
+    }
+
+    //walk from class up to root, the first class declaring name wins
+    private HashMap<String, String> nearest(int id, HashMap<String, TreeSet<String>> declared) {
+        HashMap<String, String> result = new HashMap<>();
+        int[] chain = ancestors[id];
+        for (int i = chain.length - 1; i >= 0; i--) {
+            String className = names.get(chain[i]);
+            TreeSet<String> own = declared.get(className);
+            if (own == null) continue;
+            for (String name : own) {
+                if (!result.containsKey(name)) result.put(name, className);
+            }
+        }
+        return result;
+    }
+
+    public int getId(String className) {
+        Integer id = (className != null) ? ids.get(className) : null;
+        return (id != null) ? id : -1;
+    }
+
+    public String getName(int id) {
+        return names.get(id);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public String getParent(String className) {
+        int id = getId(className);
+        return (id >= 0 && parents[id] >= 0) ? names.get(parents[id]) : null;
+    }
+
+    //most abstract class
+    public String getRoot(String className) {
+        int id = getId(className);
+        return (id >= 0) ? names.get(ancestors[id][0]) : className;
+    }
+
+    //root-...-className
+    public String getTrack(String className) {
+        int id = getId(className);
+        if (id < 0) return className;
+        StringBuilder track = new StringBuilder();
+        for (int ancestor : ancestors[id]) {
+            if (track.length() > 0) track.append("-");
+            track.append(names.get(ancestor));
+        }
+        return track.toString();
+    }
+
+    public BitSet getDescendants(int id) {
+        return (BitSet) descendants[id].clone();
+    }
+
+    public ArrayList<String> getSubclasses(String className) {
+        ArrayList<String> result = new ArrayList<>();
+        int id = getId(className);
+        if (id < 0) return result;
+        BitSet subclasses = descendants[id];
+        for (int i = subclasses.nextSetBit(0); i >= 0; i = subclasses.nextSetBit(i + 1)) result.add(names.get(i));
+        return result;
+    }
+
+    public boolean hasSubclasses(String className) {
+        int id = getId(className);
+        return id >= 0 && extendable.get(id);
+    }
+
+    public String getNearestIdentification(String className, String identifier) {
+        int id = getId(className);
+        return (id >= 0) ? nearestIdentifiers.get(id).get(identifier) : null;
+    }
+
+    public String getNearestCheckpoint(String className, String check) {
+        int id = getId(className);
+        return (id >= 0) ? nearestChecks.get(id).get(check) : null;
+    }
+
+    //class.identifier for class and all its subclasses
+    public ArrayList<String> getIdentifierRequests(String className) {
+        ArrayList<String> result = new ArrayList<>();
+        int id = getId(className);
+        if (id < 0) return result;
+        BitSet classes = getDescendants(id);
+        classes.set(id);
+        for (int i = classes.nextSetBit(0); i >= 0; i = classes.nextSetBit(i + 1)) {
+            for (String identifier : identifierNames[i]) result.add(names.get(i) + "." + identifier);
+        }
+        return result;
+    }
+}
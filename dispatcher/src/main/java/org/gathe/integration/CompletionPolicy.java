@@ -0,0 +1,86 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+/**
+ * When in-flight request is complete: after all endpoints answered ("all"), after the first non-empty
+ * answer ("first"), after the first true answer ("first-true") or after quorum of answers
+ * ("quorum" is majority of endpoints, "quorum:N" is N answers). Request is complete anyway
+ * when there is nobody to wait for.
+ */
+public class CompletionPolicy {
+
+    public static final CompletionPolicy ALL = new CompletionPolicy("all", 0);
+    public static final CompletionPolicy FIRST = new CompletionPolicy("first", 0);
+    public static final CompletionPolicy FIRST_TRUE = new CompletionPolicy("first-true", 0);
+
+    private final String name;
+    private final int quorum;           //0 for majority
+
+    private CompletionPolicy(String name, int quorum) {
+        this.name = name;
+        this.quorum = quorum;
+    }
+
+    //null for unknown policy
+    public static CompletionPolicy parse(String value) {
+        if (value == null) return null;
+        value = value.trim().toLowerCase();
+        switch (value) {
+            case "all":
+                return ALL;
+            case "first":
+                return FIRST;
+            case "first-true":
+                return FIRST_TRUE;
+            case "quorum":
+                return new CompletionPolicy("quorum", 0);
+        }
+        if (value.startsWith("quorum:")) {
+            try {
+                int size = Integer.parseInt(value.substring(7).trim());
+                if (size > 0) return new CompletionPolicy(value, size);
+            } catch (NumberFormatException e) {
+                //unknown policy
+            }
+        }
+        return null;
+    }
+
+    //content is the latest accepted answer, responses counts it too
+    public boolean isComplete(String content, int responses, int endpoints, boolean nobodyWaiting) {
+        if (nobodyWaiting) return true;
+        if (this == FIRST) return content != null && content.trim().length() != 0;
+        if (this == FIRST_TRUE) {
+            String answer = (content != null) ? content.trim() : "";
+            return answer.equalsIgnoreCase("true") || answer.equals("1");
+        }
+        if (this == ALL) return false;
+        int required = (quorum > 0) ? quorum : endpoints / 2 + 1;
+        return responses >= required;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
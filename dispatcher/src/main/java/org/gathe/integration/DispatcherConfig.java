@@ -0,0 +1,97 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Dispatcher tuning parameters. Read from dispatcher.properties in the working directory
+ * (next to queue.properties), every key may be overridden by system property "dispatcher.&lt;key&gt;".
+ */
+public class DispatcherConfig {
+
+    private static Logger LOG = Logger.getLogger("DispatcherConfig");
+    private Properties properties = new Properties();
+
+    public DispatcherConfig() {
+        this("dispatcher.properties");
+    }
+
+    public DispatcherConfig(String fileName) {
+        File file = new File(fileName);
+        if (!file.exists()) {
+            LOG.info("Configuration " + file.getAbsolutePath() + " not found, using defaults");
+            return;
+        }
+        try (InputStream stream = new FileInputStream(file)) {
+            properties.load(stream);
+            LOG.info("Configuration loaded from " + file.getAbsolutePath());
+        } catch (IOException e) {
+            LOG.error("Error when reading configuration " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = System.getProperty("dispatcher." + key);
+        if (value == null) value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) return defaultValue;
+        return value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOG.error("Wrong numeric value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    //values of all keys starting with prefix, keyed by remaining part of key
+    public Map<String, String> getValues(String prefix) {
+        HashMap<String, String> result = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix)) result.put(key.substring(prefix.length()), properties.getProperty(key).trim());
+        }
+        String systemPrefix = "dispatcher." + prefix;
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith(systemPrefix)) result.put(key.substring(systemPrefix.length()), System.getProperty(key).trim());
+        }
+        return result;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        if (value == null) return defaultValue;
+        return value.equalsIgnoreCase("true") || value.equals("1");
+    }
+}
@@ -20,6 +20,8 @@ import java.io.StringReader;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This program is free software: you can redistribute it and/or modify
@@ -43,29 +45,34 @@ public class EndpointManager extends Thread {
 
     Connection operations;
     Connection history;
+    private IdentifierStore identifiers;
+    private OperationLog operationLog;
+    private ObjectCache specifyCache;
+    private ObjectCache getCache;
 
     private MonitorThread mt;
+    private DispatcherConfig config;
+    private ExecutionEngine engine;
+    private TimeoutWheel timeoutWheel;
+    private HashMap<String, Long> actionTimeouts = new HashMap<>();
+    private HashMap<String, CompletionPolicy> completionPolicies = new HashMap<>();
+    private LatencyTracker latencies;
+    private Metrics metrics = new Metrics();
+    private Traces traces;
+    private long defaultTimeout;
 
     private static Logger LOG = Logger.getLogger("EndpointManager");
-    private ArrayList<String> endpointNames = new ArrayList<>();
-    private HashMap<String, HashMap<String, Object>> endpoints = new HashMap<>();
-    private HashMap<String, HashMap<String, String>> extendsData = new HashMap<>();
-    private ConcurrentHashMap<String, String> requests = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, Thread> threads = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, String> identifiers = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, String> replies = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, String> classNames = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, HashMap<String, String>> headers = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, ResponseThread> responseThreads = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, HashMap<String, String>> waitingList = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, ArrayList<String>> responses = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, ArrayList<String>> responders = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, String> chainResponses = new ConcurrentHashMap<>();
+    //registry is updated by receiver registry worker and read by routing workers
+    private List<String> endpointNames = new CopyOnWriteArrayList<>();
+    private ConcurrentHashMap<String, HashMap<String, Object>> endpoints = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, HashMap<String, String>> extendsData = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, InFlightRequest> inFlight = new ConcurrentHashMap<>();
+    private volatile RoutingIndex routing = RoutingIndex.build(endpoints, extendsData, endpointNames);
+    private CircuitBreakers breakers;
 
     private ReceiverThread rt;
 
-    private static String ring[] = new String[ringLength];
-    private static int ringHead = 0;
+    private static EventRing events = new EventRing(ringLength);
 
     private Session session;
     private MessageProducer producer;
@@ -97,15 +104,27 @@ public class EndpointManager extends Thread {
         return this.producer;
     }
 
+    public DispatcherConfig getConfig() {
+        return config;
+    }
+
+    public ReceiverThread getReceiver() {
+        return rt;
+    }
+
+    public ExecutionEngine getEngine() {
+        return engine;
+    }
+
     public void disconnect() {
-        //kill all the threads
-        for (String thKey : threads.keySet()) {
-            Thread th = threads.get(thKey);
-            try {
-                th.interrupt();
-            } catch (Exception e) {
-            }
-        }
+        //stop all the pending requests
+        for (InFlightRequest request : inFlight.values()) {
+            request.cancelTimeout();
+        }
+        timeoutWheel.shutdown();
+        engine.shutdown();
+        if (identifiers != null) identifiers.shutdown();
+        if (operationLog != null) operationLog.shutdown();
         isDisconnected = true;
     }
 
@@ -116,6 +135,37 @@ public class EndpointManager extends Thread {
     public EndpointManager() {
         LOG.info("Endpoint Manager initialized");
         isDisconnected = false;
+        config = new DispatcherConfig();
+        engine = new ExecutionEngine(config);
+        defaultTimeout = config.getLong("timeout.default", 3000);
+        for (String action : new String[]{"get", "match", "identify", "unify", "check", "specify", "remove"}) {
+            actionTimeouts.put(action, config.getLong("timeout." + action, defaultTimeout));
+        }
+        //identify, unify and check use only one answer, so they don't wait for the slowest endpoint
+        String[][] defaultPolicies = {{"get", "all"}, {"match", "all"}, {"specify", "all"}, {"identify", "first"}, {"unify", "first"}, {"check", "first-true"}};
+        for (String[] defaultPolicy : defaultPolicies) {
+            String value = config.getString("completion." + defaultPolicy[0], defaultPolicy[1]);
+            CompletionPolicy policy = CompletionPolicy.parse(value);
+            if (policy == null) {
+                LOG.error("Unknown completion policy for " + defaultPolicy[0] + ": " + value);
+                policy = CompletionPolicy.parse(defaultPolicy[1]);
+            }
+            completionPolicies.put(defaultPolicy[0], policy);
+        }
+        latencies = new LatencyTracker(config);
+        traces = new Traces(config.getBoolean("trace", true), config.getInt("trace.transactions", 1000), config.getInt("trace.spans", 100));
+        breakers = new CircuitBreakers(config.getBoolean("breaker", true), config.getInt("breaker.failures", 5), config.getLong("breaker.cooldown", 10000));
+        timeoutWheel = new TimeoutWheel(config.getLong("timeout.tick", 50), TimeUnit.MILLISECONDS, config.getInt("timeout.wheel", 512));
+        timeoutWheel.start();
+        specifyCache = new ObjectCache(config.getInt("specify.cache", 10000), config.getLong("specify.ttl", 300000));
+        getCache = new ObjectCache(config.getInt("get.cache", 0), config.getLong("get.cache.ttl", 60000));
+        for (Map.Entry<String, String> classTtl : config.getValues("get.cache.ttl.").entrySet()) {
+            try {
+                getCache.setTtl(classTtl.getKey(), Long.parseLong(classTtl.getValue()));
+            } catch (NumberFormatException e) {
+                LOG.error("Wrong cache ttl for class " + classTtl.getKey());
+            }
+        }
 
         Server embedded = new Server();
         embedded.setPort(8000);
@@ -151,6 +201,13 @@ public class EndpointManager extends Thread {
             } catch (SQLException e) {
                 //just ignore
             }
+            identifiers = new IdentifierStore(history, config.getInt("identifiers.cache", 10000), config.getInt("identifiers.batch", 100), config.getLong("identifiers.flush", 200));
+            identifiers.start();
+            String policy = config.getString("operations.policy", "drop");
+            if (!policy.equalsIgnoreCase("drop") && !policy.equalsIgnoreCase("block")) LOG.error("Unknown operation log policy: " + policy);
+            operationLog = new OperationLog(operations, config.getInt("operations.queue", 10000), config.getInt("operations.batch", 500),
+                    config.getLong("operations.flush", 1000), policy.equalsIgnoreCase("block"));
+            operationLog.start();
         } catch (ClassNotFoundException e) {
             LOG.error("Error when connecting to operations database");
             e.printStackTrace();
@@ -175,54 +232,26 @@ public class EndpointManager extends Thread {
         mt.interrupt();
     }
 
-    public int getRingHead() {
-        return ringHead;
+    public long getRingHead() {
+        return events.getHead();
     }
 
-    public String[] getMessages(int tail) {
-        Integer head = new Integer(ringHead);
-        synchronized (head) {
-            ArrayList<String> messages = new ArrayList<>();
-            messages.add("" + head);
-            int index = tail;
-            while (index != head) {
-                messages.add(ring[index]);
-                index++;
-                if (index >= ringLength) index = 0;
-            }
-
-
+    public String[] getMessages(long tail) {
+        ArrayList<String> messages = events.read(tail);
+        if (LOG.isDebugEnabled()) {
             for (String message : messages) {
                 LOG.debug(message);
             }
-
-            return messages.toArray(new String[0]);
         }
+        return messages.toArray(new String[0]);
     }
 
-    public static void sendMessage(String message) {
-
-        ring[ringHead] = message;
-        ringHead++;
-        if (ringHead >= ringLength) ringHead = 0;
-
-        ConcurrentHashMap<String, Response> sem = WebHandler.semaphores;
+    public boolean awaitMessages(long tail, long timeout) {
+        return events.await(tail, timeout, TimeUnit.MILLISECONDS);
+    }
 
-        try {
-            synchronized (sem) {
-                for (String threadId : sem.keySet()) {
-                    Response response = sem.get(threadId);
-                    synchronized (response) {
-                        LOG.debug("Sending to " + threadId);
-                        response.setResponse(message);
-                        response.notify();
-                    }
-                }
-            }
-        } catch (ConcurrentModificationException e) {
-            LOG.error("ConcurrentModificationException in sendMessage, continue to message loop");
-            e.printStackTrace();
-        }
+    public static void sendMessage(String message) {
+        events.publish(message);
     }
 
     public void doInit() {
@@ -240,24 +269,6 @@ public class EndpointManager extends Thread {
         }
     }
 
-    public boolean checkEndpointUpdatable(String endpointName, String className) {
-        HashMap<String, Object> schema = (HashMap<String, Object>) endpoints.get(endpointName);
-        ArrayList<String> updatable = (ArrayList<String>) schema.get("updatable");
-        if (schema.containsKey(className) && updatable.contains(className)) {
-            return true;         //found top class match
-        }
-        HashMap<String, String> extData = extendsData.get(endpointName);
-        if (extData != null) {
-            for (String subclass : extData.keySet()) {
-                String extClass = extData.get(subclass);
-                if (extClass.trim().equalsIgnoreCase(className)) {
-                    if (checkEndpointUpdatable(endpointName, subclass)) return true;
-                }
-            }
-        }
-        return false;
-    }
-
     public boolean checkEndpointMatchable(String endpointName, String className) {
         HashMap<String, Object> schema = (HashMap<String, Object>) endpoints.get(endpointName);
         ArrayList<String> matchable = (ArrayList<String>) schema.get("matchable");
@@ -278,123 +289,49 @@ public class EndpointManager extends Thread {
 
     //Traverse to most abstract type
     public String traverseToAbstract(String className) {
-        LOG.debug("Traversing to abstract via " + className);
-        String topClass = this.searchAncestor(className);
-        if (topClass != null) return traverseToAbstract(topClass);
-        return className;
+        return routing.getHierarchy().getRoot(className);
     }
 
     public String searchAncestor(String className) {
-        String topClass = null;
-        for (String endpointName : endpoints.keySet()) {
-            HashMap<String, String> extData = extendsData.get(endpointName);
-            if (extData != null) {
-                if (extData.containsKey(className)) topClass = extData.get(className);
-            }
-        }
-        return topClass;
+        return routing.getHierarchy().getParent(className);
     }
 
     public String getTrack(String className) {
-        LOG.info("Traversing via " + className);
-        String topClass = this.searchAncestor(className);
-        if (topClass != null) return getTrack(topClass) + "-" + className;
-        return className;
+        return routing.getHierarchy().getTrack(className);
     }
 
     public String searchNearestIdentification(String className, String identifier) {
-        LOG.info("Searching for nearest identification");
-        for (String endpointName : endpoints.keySet()) {
-            LOG.debug("Endpoint: " + endpointName);
-            HashMap<String, Object> epRef = (HashMap<String, Object>) endpoints.get(endpointName).get("identifiers");
-            HashMap<String, String> idRef = (HashMap<String, String>) epRef.get(className);
-            if (idRef != null && idRef.containsKey(identifier))
-                return className;        //find identification possibility
-        }
-        String topClass = searchAncestor(className);        //traverse up to root
-        if (topClass != null) return searchNearestIdentification(topClass, identifier);
-        return null;        //if not found
+        return routing.getHierarchy().getNearestIdentification(className, identifier);
     }
 
     public String searchNearestCheckpoint(String className, String check) {
-        for (String endpointName : endpoints.keySet()) {
-            HashMap<String, Object> epRef = (HashMap<String, Object>) endpoints.get(endpointName).get("checks");
-            HashMap<String, String> idRef = (HashMap<String, String>) epRef.get(className);
-            if (idRef != null && idRef.containsKey(check)) return className;        //find identification possibility
-        }
-        String topClass = searchAncestor(className);        //traverse up to root
-        if (topClass != null) return searchNearestCheckpoint(topClass, check);
-        return null;        //if not found
+        return routing.getHierarchy().getNearestCheckpoint(className, check);
     }
 
     //get all declared subclasses for specified class
     public ArrayList<String> getSubclasses(String className) {
-        ArrayList<String> result = new ArrayList<>();
-        for (String endpointName : extendsData.keySet()) {
-            HashMap<String, String> extendInfo = extendsData.get(endpointName);
-            if (extendInfo.containsValue(className)) {
-                for (String subclass : extendInfo.keySet()) {
-                    if (extendInfo.get(subclass).equalsIgnoreCase(className)) {
-                        result.add(subclass);           //add direct derivative class
-                        result.addAll(getSubclasses(subclass));     //and all subclasses
-                    }
-                }
-            }
-        }
-        ArrayList<String> unique = new ArrayList<>();
-        for (String res : result) {
-            if (!unique.contains(res)) unique.add(res);
-        }
-        return unique;
+        return routing.getHierarchy().getSubclasses(className);
     }
 
-    private ArrayList<String> getIdentifierByEndpoint(String endpointName, String className, ArrayList<String> allSubclasses) {
-        ArrayList<String> result = new ArrayList<>();
-        if (!endpoints.containsKey(endpointName)) return result;
-        HashMap<String, HashMap<String, HashMap<String, String>>> endpointIdentifiers = (HashMap<String, HashMap<String, HashMap<String, String>>>) endpoints.get(endpointName).get("identifiers");
-
-        for (String clName : allSubclasses) {
-            if (endpointIdentifiers.containsKey(clName)) {
-                //class present - extract identifiers
-                for (String ks : endpointIdentifiers.get(clName).keySet()) {
-                    result.add(clName + "." + ks);           //add full identifier path
-                }
-            }
-        }
-        return result;
+    public void storeIdentifier(String uuid, String identifierName, String identifierValue) {
+        if (identifiers != null) identifiers.store(uuid, identifierName, identifierValue);
     }
 
-    public void storeIdentifier(String uuid, String identifierName, String identifierValue) {
-        try {
-            Statement sth = history.createStatement();
-            String qr = "INSERT INTO identifiers (uuid,identifier_name,identifier_value) VALUES ('" + uuid + "','" + identifierName + "','" + identifierValue + "')";
-            LOG.debug("Query to store: " + qr);
-            sth.executeUpdate(qr);
-            sth.executeUpdate("COMMIT");
-        } catch (SQLException e) {
-            LOG.error("Error occured when storing identifier");
-        }
+    //identifier name -> value, written in one batch
+    public void storeIdentifiers(String uuid, Map<String, String> values) {
+        if (identifiers != null && !values.isEmpty()) identifiers.storeAll(uuid, values);
     }
 
     public ArrayList<String> getIdentifierRequests(String className) {
-        ArrayList<String> result = new ArrayList<>();
-        ArrayList<String> allClasses = this.getSubclasses(className);
-        allClasses.add(className);
-        for (String endpointName : endpoints.keySet()) {
-            result.addAll(getIdentifierByEndpoint(endpointName, className, allClasses));
-        }
-
-        ArrayList<String> unique = new ArrayList<>();
-        for (String res : result) {
-            if (!unique.contains(res)) unique.add(res);
-        }
-        return unique;
+        return routing.getHierarchy().getIdentifierRequests(className);
     }
 
     public String getAnimationToEndpointIndexes(String messageId) {
         LOG.debug("To Endpoints");
         ArrayList<String> endpointIndexes = new ArrayList<>();
-        for (String key : waitingList.get(messageId).keySet()) {
+        InFlightRequest request = inFlight.get(messageId);
+        if (request == null) return "";
+        for (String key : request.getWaitingEndpoints()) {
             int id = this.getEndpointIndex(key);
             if (id >= 0) endpointIndexes.add("+" + id);
         }
@@ -403,34 +340,55 @@ public class EndpointManager extends Thread {
     }
 
     public String getAnimationToUpdateEndpoints(String className) {
+        RoutingIndex index = routing;
         ArrayList<String> endpointIndexes = new ArrayList<>();
-        for (String endpointName : endpoints.keySet()) {
-            if (checkEndpointUpdatable(endpointName, className)) {
-                int id = this.getEndpointIndex(endpointName);
-                if (id >= 0) endpointIndexes.add("+" + id);
-            }
+        for (String endpointName : index.getUpdatableEndpoints(className)) {
+            int id = index.getEndpointIndex(endpointName);
+            if (id >= 0) endpointIndexes.add("+" + id);
         }
         return this.join(endpointIndexes, ",");
     }
 
     public String fetchStoredUuid(String identifierName, String id) {
-        try {
-            Statement st = history.createStatement();
-            ResultSet rs = st.executeQuery("SELECT * FROM identifiers WHERE identifier_name='" + identifierName + "' AND identifier_value='" + id + "'");
-            if (rs.next()) return rs.getString("uuid");
-        } catch (Exception e) {
-        }
-        return null;
+        return (identifiers != null) ? identifiers.fetchUuid(identifierName, id) : null;
     }
 
     public String fetchStoredId(String identifierName, String uuid) {
-        try {
-            Statement st = history.createStatement();
-            ResultSet rs = st.executeQuery("SELECT * FROM identifiers WHERE uuid='" + uuid + "' AND identifier_name='" + identifierName + "'");
-            if (rs.next()) return rs.getString("identifier_value");
-        } catch (Exception e) {
-        }
-        return null;
+        return (identifiers != null) ? identifiers.fetchValue(identifierName, uuid) : null;
+    }
+
+    public ObjectCache getSpecifyCache() {
+        return specifyCache;
+    }
+
+    public ObjectCache getGetCache() {
+        return getCache;
+    }
+
+    public IdentifierStore getIdentifierStore() {
+        return identifiers;
+    }
+
+    public OperationLog getOperationLog() {
+        return operationLog;
+    }
+
+    //queued, written by operation log thread; never waits, called from timer and registry stages
+    public void logOperation(String action, String endpointName) {
+        if (operationLog != null) operationLog.log(action, endpointName, false);
+    }
+
+    //update and remove are sent to every endpoint which can update class, logged by engine task after sending
+    public void logUpdate(String action, String className) {
+        if (operationLog == null) return;
+        for (String endpointName : routing.getUpdatableEndpoints(className)) operationLog.log(action, endpointName, true);
+    }
+
+    //endpoints asked for request, logged by engine thread after response handler
+    private void logRequest(InFlightRequest request) {
+        if (operationLog == null) return;
+        for (String endpointName : request.getResponders()) operationLog.log(request.getAction(), endpointName, true);
+        for (String endpointName : request.getWaitingEndpoints()) operationLog.log(request.getAction(), endpointName, true);
     }
 
     private boolean allSystemsConfirmed() {
@@ -518,10 +476,55 @@ public class EndpointManager extends Thread {
             sendEndpointNames();
         }
         endpoints.remove(endpointName);
+        breakers.reset(endpointName);
+        rebuildRouting();
+        logOperation("bye", endpointName);
     }
 
+    //registry is changed only by hello/bye, requests read the current snapshot without locking
+    private synchronized void rebuildRouting() {
+        routing = RoutingIndex.build(endpoints, extendsData, endpointNames);
+        //specifiable endpoints and sources of object data may be changed
+        if (specifyCache != null) specifyCache.clear();
+        if (getCache != null) getCache.clear();
+    }
+
+    public RoutingIndex getRouting() {
+        return routing;
+    }
+
+    //+ connected, - disconnected, ! breaker is open, ? breaker is half-open
     public void sendEndpointNames() {
-        sendMessage("endpoints:" + join(endpointNames.toArray(new String[0]), ","));
+        ArrayList<String> names = new ArrayList<>();
+        for (String name : endpointNames) {
+            if (name.startsWith("+")) {
+                int state = breakers.getState(name.substring(1));
+                if (state == CircuitBreakers.OPEN) name = "!" + name.substring(1);
+                if (state == CircuitBreakers.HALF_OPEN) name = "?" + name.substring(1);
+            }
+            names.add(name);
+        }
+        sendMessage("endpoints:" + join(names, ","));
+    }
+
+    public CircuitBreakers getBreakers() {
+        return breakers;
+    }
+
+    //breaker state is changed: open endpoint is skipped when routing and probed again after cool-down
+    private void breakerChanged(final String endpointName) {
+        int state = breakers.getState(endpointName);
+        LOG.info("Circuit breaker of " + endpointName + " is " + ((state == CircuitBreakers.OPEN) ? "open" : (state == CircuitBreakers.HALF_OPEN) ? "half-open" : "closed"));
+        if (state == CircuitBreakers.OPEN) {
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (breakers.halfOpen(endpointName)) breakerChanged(endpointName);
+                }
+            }, breakers.getCoolDown());
+        }
+        //routing is not rebuilt, breakers are applied when request is routed
+        sendEndpointNames();
     }
 
     public void sendAnimation(String transactionId, String commonAction, String identifier, String color, String actions) {
@@ -533,16 +536,13 @@ public class EndpointManager extends Thread {
     }
 
     public int getEndpointIndex(String name) {
-        LOG.debug("Resolving endpoint name: " + name);
-        int id = endpointNames.indexOf("+" + name);
-        if (id < 0) {
-            id = endpointNames.indexOf("-" + name);
-        }
-        return id;
+        return routing.getEndpointIndex(name);
     }
 
     public void register(String endpointName, String xml) {
+        logOperation("hello", endpointName);
         LOG.info("Registering new endpoint: " + endpointName + " with schema: " + xml);
+        breakers.reset(endpointName);
         if (endpointNames.contains("-" + endpointName)) {
             int index = endpointNames.indexOf("-" + endpointName);
             endpointNames.set(index, "+" + endpointName);
@@ -564,6 +564,7 @@ public class EndpointManager extends Thread {
             ArrayList<String> specifiables = new ArrayList<>();
             ArrayList<String> updatable = new ArrayList<>();
             ArrayList<String> matchable = new ArrayList<>();
+            HashMap<String, String> extendsHM = new HashMap<>();
 
             for (int classId = 0; classId < classes.getLength(); classId++) {
                 Element classTag = (Element) classes.item(classId);
@@ -605,15 +606,11 @@ public class EndpointManager extends Thread {
 
                 if (classTag.hasAttribute("extends")) {
                     String extendsClass = classTag.getAttribute("extends");
-                    if (extendsClass != null && extendsClass.trim() != "") {
+                    if (extendsClass != null && !extendsClass.trim().isEmpty()) {
 
                         String className = classTag.getAttribute("id");
-                        if (!extendsData.containsKey(endpointName)) {
-                            HashMap hx = new HashMap();
-                            extendsData.put(endpointName, hx);
-                            LOG.debug("Found extend for " + endpointName + " source class: " + className + " extends " + extendsClass);
-                        }
-                        extendsData.get(endpointName).put(className, extendsClass);
+                        LOG.debug("Found extend for " + endpointName + " source class: " + className + " extends " + extendsClass);
+                        extendsHM.put(className, extendsClass);
 
                     }
                 }
@@ -630,6 +627,12 @@ public class EndpointManager extends Thread {
             systemDescription.put("specifiables", specifiables);
             systemDescription.put("updatable", updatable);
             systemDescription.put("confirmed", "1");
+            //declarations of previous registration are replaced
+            if (extendsHM.isEmpty()) {
+                extendsData.remove(endpointName);
+            } else {
+                extendsData.put(endpointName, extendsHM);
+            }
             endpoints.put(endpointName, systemDescription);
         } catch (ParserConfigurationException e) {
             e.printStackTrace();
@@ -638,245 +641,246 @@ public class EndpointManager extends Thread {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        rebuildRouting();
     }
 
-    public void addGetRequest(String commonAction, String messageId, String className, String uuid, String replyTo, Thread thread, ResponseThread responseThread) {
+    public void addGetRequest(String commonAction, String messageId, String className, String uuid, String replyTo, ResponseHandler responseHandler) {
         LOG.debug("Add get request for " + className + ":" + uuid + ". Message ID: " + messageId);
-        responders.put(messageId, new ArrayList<String>());
-        requests.put(messageId, commonAction);
-        threads.put(messageId, thread);
-        replies.put(messageId, replyTo);
-        identifiers.put(messageId, uuid);
-        responseThreads.put(messageId, responseThread);
-        HashMap<String, String> waitingData = new HashMap<>();
-        for (String endpointName : endpoints.keySet()) {
-            HashMap<String, Object> schema = (HashMap<String, Object>) endpoints.get(endpointName).get("schema");
-            for (String schemaClassName : schema.keySet()) {
-                if (schemaClassName.equalsIgnoreCase(className)) {
-                    LOG.debug("Resolved to endpoint " + endpointName);
-                    waitingData.put(endpointName, new Timestamp(new java.util.Date().getTime()).toString());
-                }
-            }
-        }
-        waitingList.put(messageId, waitingData);
+        //answers of all endpoints are merged, partial object must not be returned (and cached), so breakers are not applied
+        List<String> waitingData = routing.getGetEndpoints(className);
+        track(new InFlightRequest(messageId, commonAction, className, uuid, replyTo, null, responseHandler, getCompletionPolicy(commonAction), waitingData));
     }
 
-    public void addMatchRequest(String commonAction, String messageId, String className, String replyTo, Thread thread, HashMap<String, String> headers, ResponseThread responseThread) {
+    public void addMatchRequest(String commonAction, String messageId, String className, String replyTo, HashMap<String, String> headers, ResponseHandler responseHandler) {
         LOG.debug("Add match request for " + className + ". Message ID: " + messageId);
-        responders.put(messageId, new ArrayList<String>());
-        requests.put(messageId, commonAction);
-        threads.put(messageId, thread);
-        if (replyTo != null) replies.put(messageId, replyTo);
-        classNames.put(messageId, className);
-        if (headers != null) this.headers.put(messageId, headers);
-        identifiers.put(messageId, "");
-        responseThreads.put(messageId, responseThread);
-        HashMap<String, String> waitingData = new HashMap<>();
-        for (String endpointName : endpoints.keySet()) {
-            ArrayList<String> matches = (ArrayList<String>) endpoints.get(endpointName).get("matchable");
-            if (matches.contains(className)) {
-                LOG.debug("Resolved to endpoint " + endpointName);
-                waitingData.put(endpointName, new Timestamp(new java.util.Date().getTime()).toString());
-            }
-        }
-        waitingList.put(messageId, waitingData);
+        //merged too, skipped endpoint would silently shorten the result
+        List<String> waitingData = routing.getMatchEndpoints(className);
+        track(new InFlightRequest(messageId, commonAction, className, "", replyTo, headers, responseHandler, getCompletionPolicy(commonAction), waitingData));
     }
 
-    public void addCheckRequest(String commonAction, String messageId, String className, String identifierName, String identifier, String replyTo, Thread thread, ResponseThread responseThread) {
+    public void addCheckRequest(String commonAction, String messageId, String className, String identifierName, String identifier, String replyTo, ResponseHandler responseHandler) {
         LOG.debug("Add check request for " + className + "." + identifierName + ": " + identifier + ". Message ID: " + messageId);
-        responders.put(messageId, new ArrayList<String>());
-        requests.put(messageId, commonAction);
-        threads.put(messageId, thread);
-        if (replyTo != null) replies.put(messageId, replyTo);
-        identifiers.put(messageId, identifier);
-        responseThreads.put(messageId, responseThread);
-        HashMap<String, String> waitingData = new HashMap<>();
-        for (String endpointName : endpoints.keySet()) {
-            HashMap<String, HashMap<String, String>> checks = (HashMap<String, HashMap<String, String>>) endpoints.get(endpointName).get("checks");
-            for (String schemaClassName : checks.keySet()) {
-                if (schemaClassName.equalsIgnoreCase(className)) {
-                    if (checks.get(schemaClassName).containsKey(identifierName)) {
-                        LOG.debug("Resolved to endpoint " + endpointName);
-                        waitingData.put(endpointName, new Timestamp(new java.util.Date().getTime()).toString());
-                    }
-                }
-            }
-        }
-        waitingList.put(messageId, waitingData);
+        List<String> waitingData = breakers.admit(routing.getCheckEndpoints(className, identifierName));
+        track(new InFlightRequest(messageId, commonAction, className, identifier, replyTo, null, responseHandler, getCompletionPolicy(commonAction), waitingData));
     }
 
-    public void addIdentifierRequest(String commonAction, String messageId, String className, String identifierName, String identifier, String replyTo, Thread thread, ResponseThread responseThread) {
+    public void addIdentifierRequest(String commonAction, String messageId, String className, String identifierName, String identifier, String replyTo, ResponseHandler responseHandler) {
         LOG.debug("Add resolve request for " + className + "." + identifierName + ": " + identifier + ". Message ID: " + messageId);
-        responders.put(messageId, new ArrayList<String>());
-        requests.put(messageId, commonAction);
-        threads.put(messageId, thread);
-        if (replyTo != null) replies.put(messageId, replyTo);
-        identifiers.put(messageId, identifier);
-        responseThreads.put(messageId, responseThread);
-
-        HashMap<String, String> waitingData = new HashMap<>();
-        for (String endpointName : endpoints.keySet()) {
-            HashMap<String, HashMap<String, String>> identifiers = (HashMap<String, HashMap<String, String>>) endpoints.get(endpointName).get("identifiers");
-            for (String schemaClassName : identifiers.keySet()) {
-                LOG.debug("addIdentifierRequest: @" + endpointName + ": className: " + className + ":" + schemaClassName + " -> " + identifierName + ":" + identifiers.get(schemaClassName));
-                if (schemaClassName.equalsIgnoreCase(className)) {
-                    if (identifiers.get(schemaClassName).containsKey(identifierName)) {
-                        LOG.debug("Resolved to endpoint: " + endpointName);
-                        waitingData.put(endpointName, new Timestamp(new java.util.Date().getTime()).toString());
-                    }
-                }
-            }
-        }
-        waitingList.put(messageId, waitingData);
+        List<String> waitingData = breakers.admit(routing.getIdentifierEndpoints(className, identifierName));
+        track(new InFlightRequest(messageId, commonAction, className, identifier, replyTo, null, responseHandler, getCompletionPolicy(commonAction), waitingData));
     }
 
-    public void addSpecifyRequest(String commonAction, String messageId, String className, String uuid, String replyTo, Thread thread, ResponseThread responseThread) {
+    public void addSpecifyRequest(String commonAction, String messageId, String className, String uuid, String replyTo, ResponseHandler responseHandler) {
         LOG.debug("Add specify request for " + className + ":" + uuid + ". Message ID: " + messageId);
-        responders.put(messageId, new ArrayList<String>());
-        requests.put(messageId, commonAction);
-        threads.put(messageId, thread);
-        if (replyTo != null) replies.put(messageId, replyTo);
-        identifiers.put(messageId, uuid);
-        if (responseThread != null) responseThreads.put(messageId, responseThread);
-        HashMap<String, String> waitingData = new HashMap<>();
-        for (String endpointName : endpoints.keySet()) {
-            if (isClassNameSpecifiableByEndpoint(endpointName, className)) {
-                LOG.debug("Resolved to endpoint: " + endpointName);
-                waitingData.put(endpointName, new Timestamp(new java.util.Date().getTime()).toString());
-            }
-        }
-        waitingList.put(messageId, waitingData);
+        //merged too, specify cache relies on all endpoints being asked
+        List<String> waitingData = routing.getSpecifyEndpoints(className);
+        track(new InFlightRequest(messageId, commonAction, className, uuid, replyTo, null, responseHandler, getCompletionPolicy(commonAction), waitingData));
     }
 
-    public String getReplyTo(String messageId) {
-        return replies.get(messageId);
+    private static String actionOf(String commonAction) {
+        return commonAction.split("\\.")[0].toLowerCase();
     }
 
-    public HashMap<String, String> getHeaders(String messageId) {
-        return new HashMap<>(headers.get(messageId));
+    //by action of routing key
+    public CompletionPolicy getCompletionPolicy(String commonAction) {
+        CompletionPolicy policy = completionPolicies.get(actionOf(commonAction));
+        return (policy != null) ? policy : CompletionPolicy.ALL;
     }
 
-    public String getClassNames(String messageId) {
-        return classNames.get(messageId);
+    private void track(InFlightRequest request) {
+        if (request.getResponseHandler() != null) request.getResponseHandler().setRequest(request);
+        inFlight.put(request.getMessageId(), request);
     }
 
-    public void timeoutResponse(String messageId) {
-        if (threads.containsKey(messageId)) {
-            responseThreads.get(messageId).start();
-        }
+    public InFlightRequest getInFlightRequest(String messageId) {
+        return inFlight.get(messageId);
     }
 
-    public void gotResponse(String messageId, String from, String content) {
-//        LOG.debug("Got response from remote system " + from + " with " + content);
-        if (threads.containsKey(messageId)) {
-
-            HashMap<String, String> waitingData = waitingList.get(messageId);
-            waitingData.remove(from);
-            responders.get(messageId).add(from);
-            waitingList.put(messageId, waitingData);
-            if (!responses.containsKey(messageId)) {
-                responses.put(messageId, new ArrayList<String>());
-            }
-            LOG.debug("waiting data length for " + messageId + " is " + waitingData.size());
-            responses.get(messageId).add(content);
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
 
-            if (waitingData.isEmpty()) {
-                responseThreads.get(messageId).start();
-            }
-        }
+    //endpoints not answered yet, over all in-flight requests
+    public int getWaitingCount() {
+        int count = 0;
+        for (InFlightRequest request : inFlight.values()) count += request.getWaitingEndpoints().size();
+        return count;
     }
 
-    public String getResponseAnimation(String messageId) {
-        ArrayList<String> animationElements = new ArrayList<>();
-        LOG.debug("Retrieving response animation for " + messageId);
-        for (String systemId : responders.get(messageId)) {
-            LOG.debug("Getting endpoint: " + systemId);
-            animationElements.add("-" + this.getEndpointIndex(systemId));
-        }
-        return this.join(animationElements, ",");
+    public int getPendingTimeouts() {
+        return timeoutWheel.getPending();
     }
 
-    public void interruptRequestThread(String messageId) {
-        if (threads.containsKey(messageId) && threads.get(messageId) != null && !threads.get(messageId).isInterrupted()) {
-            threads.get(messageId).interrupt();
-        }
+    public long getActionTimeout(String action) {
+        Long timeout = actionTimeouts.get(action.toLowerCase());
+        return (timeout != null) ? timeout : defaultTimeout;
     }
 
-    public String getRequestCommonAction(String messageId) {
-        return requests.get(messageId);
+    //late responses are measured too, so slow endpoints get their deadline;
+    //breaker is closed only by answer which still counts (late one was already taken as failure)
+    public void recordResponse(InFlightRequest request, String endpointName) {
+        if (request == null) return;
+        Long requested = request.getRequestTime(endpointName);
+        if (requested == null) return;
+        long latency = System.currentTimeMillis() - requested;
+        latencies.record(request.getAction(), endpointName, latency);
+        metrics.response(request.getAction(), endpointName, latency);
+        trace(request, ".response", endpointName, requested);
+        if (!request.isCompleted() && breakers.success(endpointName)) breakerChanged(endpointName);
     }
 
-    public String getRequestIdentifier(String messageId) {
-        return identifiers.get(messageId);
+    public LatencyTracker getLatencies() {
+        return latencies;
     }
 
-    public void cleanupResponse(String messageId) {
-        replies.remove(messageId);
-        threads.remove(messageId);
-        responses.remove(messageId);
-        requests.remove(messageId);
-        if (headers.contains(messageId)) headers.remove(messageId);
-        if (classNames.contains(messageId)) classNames.remove(messageId);
-        responders.remove(messageId);
-        identifiers.remove(messageId);
-        responseThreads.remove(messageId);
+    public Metrics getMetrics() {
+        return metrics;
     }
 
-    public ResponseThread getResponseThread(String messageId) {
-        return responseThreads.get(messageId);
+    public Traces getTraces() {
+        return traces;
     }
 
-    public ArrayList<String> getAllResponses(String messageId) {
-        return responses.get(messageId);
+    //span of request stage till now
+    private void trace(InFlightRequest request, String stage, String endpointName, long start) {
+        ResponseHandler responseHandler = request.getResponseHandler();
+        if (responseHandler == null || !traces.isEnabled()) return;
+        traces.span(responseHandler.getTransactionId(), request.getAction() + stage, request.getMessageId(), endpointName, start, System.currentTimeMillis());
     }
 
-    public boolean isClassNameExtendable(String generalClassName) {
+    //task is handed over to engine after delay (milliseconds), so it never runs on timer thread
+    public TimeoutWheel.Timeout schedule(final Runnable task, long delay) {
+        return timeoutWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                engine.execute(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    //response handler is dispatched with everything collected so far if not all endpoints answered in time,
+    //deadline follows observed latencies of endpoints
+    public void scheduleTimeout(final String messageId, String action) {
+        InFlightRequest request = inFlight.get(messageId);
+        if (request == null) return;
+        if (request.getWaitingEndpoints().isEmpty()) {
+            //nobody to wait for (no endpoints for class, or all of them are cut off by breakers)
+            if (request.complete()) dispatchResponse(request);
+            return;
+        }
+        long timeout = latencies.getTimeout(action, request.getWaitingEndpoints(), getActionTimeout(action));
+        request.setTimeout(timeoutWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timeoutResponse(messageId);
+            }
+        }, timeout, TimeUnit.MILLISECONDS));
+    }
 
-        for (String endpointName : extendsData.keySet()) {
-            if (extendsData.containsKey(endpointName) && extendsData.get(endpointName).containsValue(generalClassName))
-                return true;
-        }
-        return false;
+    //runs on timer thread, so it only claims request (later responses are dropped), the rest is done by engine
+    public void timeoutResponse(String messageId) {
+        final InFlightRequest request = inFlight.get(messageId);
+        if (request == null || !request.complete()) return;
+        final long timedOut = System.currentTimeMillis();
+        engine.execute(new ExecutionEngine.Rejectable() {
+            @Override
+            public void run() {
+                timedOut(request, timedOut);
+            }
 
+            //timeouts are not recorded, but handler still gets what was collected
+            @Override
+            public void rejected() {
+                dispatchResponse(request);
+            }
+        });
     }
 
-    public boolean isClassNameSpecifiableByEndpoint(String endpointName, String className) {
-//
-        ArrayList<String> specifiables = (ArrayList<String>) endpoints.get(endpointName).get("specifiables");
-
-        if (specifiables.contains(className)) {
-            return true;
+    private void timedOut(InFlightRequest request, long timedOut) {
+        LOG.error(request.getCommonAction() + " response timeout");
+        String action = request.getAction();
+        for (String endpointName : request.getWaitingEndpoints()) {
+            Long requested = request.getRequestTime(endpointName);
+            if (requested != null) latencies.timeout(action, endpointName, timedOut - requested);
+            metrics.timeout(action, endpointName);
+            trace(request, ".timeout", endpointName, request.getStartTime());
+            logOperation(action + ".timeout", endpointName);
+            if (breakers.failure(endpointName)) breakerChanged(endpointName);
         }
+        dispatchResponse(request);
+    }
 
-        ArrayList<String> checkedClassNames = new ArrayList<>();
-
-        for (String epName : endpoints.keySet()) {
-            if (extendsData.containsKey(epName)) {
-                HashMap<String, String> endpointExtends = extendsData.get(epName);
-                if (endpointExtends.containsKey(className)) {
-                    String parentClassName = endpointExtends.get(className);
-
-                    if (!checkedClassNames.contains(parentClassName)) {
-                        if (isClassNameSpecifiableByEndpoint(endpointName, parentClassName)) {
-                            return true;
-                        }
-                        checkedClassNames.add(parentClassName);
-                    }
-                }
+    public void gotResponse(String messageId, String from, String content) {
+//        LOG.debug("Got response from remote system " + from + " with " + content);
+        InFlightRequest request = inFlight.get(messageId);
+        if (request == null) return;        //late response, request is already cleaned up
+
+        recordResponse(request, from);
+        boolean completed = request.addResponse(from, content);
+        LOG.debug("waiting data length for " + messageId + " is " + request.getWaitingEndpoints().size());
+        if (completed) {
+            request.cancelTimeout();
+            dispatchResponse(request);
+        }
+    }
+
+    //request is completed (by policy, timeout or without endpoints), its state is dropped before handler runs
+    private void dispatchResponse(final InFlightRequest request) {
+        cleanupResponse(request.getMessageId());
+        final long dispatched = System.currentTimeMillis();
+        metrics.request(request.getAction(), dispatched - request.getStartTime());
+        ResponseHandler responseHandler = request.getResponseHandler();
+        if (responseHandler == null) return;
+        //runs on engine thread when handler is finished
+        responseHandler.getCompletion().thenRun(new Runnable() {
+            @Override
+            public void run() {
+                //merge is measured from completion, so it includes waiting for engine thread
+                if (traces.isEnabled()) trace(request, ".merge", null, dispatched);
+                logRequest(request);
             }
+        });
+        responseHandler.dispatch(engine);
+    }
+
+    public String getResponseAnimation(InFlightRequest request) {
+        ArrayList<String> animationElements = new ArrayList<>();
+        LOG.debug("Retrieving response animation for " + request.getMessageId());
+        for (String systemId : request.getResponders()) {
+            LOG.debug("Getting endpoint: " + systemId);
+            animationElements.add("-" + this.getEndpointIndex(systemId));
         }
+        return this.join(animationElements, ",");
+    }
 
-        return false;
+    public void cancelTimeout(String messageId) {
+        InFlightRequest request = inFlight.get(messageId);
+        if (request != null) request.cancelTimeout();
     }
 
-    public void setResponse(String messageId, String response) {
-        chainResponses.put(messageId, response);
+    //chunk of multi-part response is accepted, deadline is counted again from now
+    public void extendTimeout(String messageId) {
+        InFlightRequest request = inFlight.get(messageId);
+        if (request != null && !request.isCompleted()) scheduleTimeout(messageId, request.getAction());
     }
 
-    public String getResponse(String messageId) {
-        String response = chainResponses.get(messageId);
-        chainResponses.remove(messageId);
+    //response of endpoint is lost (dropped or evicted while reassembling), it is not waited for anymore
+    public void failResponse(String messageId, String endpointName) {
+        InFlightRequest request = inFlight.get(messageId);
+        if (request == null || request.getRequestTime(endpointName) == null) return;
+        LOG.error(request.getCommonAction() + " response of " + endpointName + " is lost");
+        metrics.timeout(request.getAction(), endpointName);
+        if (breakers.failure(endpointName)) breakerChanged(endpointName);
+        if (request.fail(endpointName)) dispatchResponse(request);
+    }
 
-        return response;
+    //the only place where request state is dropped, called on dispatch
+    private void cleanupResponse(String messageId) {
+        InFlightRequest request = inFlight.remove(messageId);
+        if (request != null) request.cancelTimeout();
+    }
+
+    public boolean isClassNameExtendable(String generalClassName) {
+        return routing.getHierarchy().hasSubclasses(generalClassName);
     }
 }
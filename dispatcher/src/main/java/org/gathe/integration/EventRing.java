@@ -0,0 +1,111 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring of dashboard events. Every event gets a sequence number, readers keep own cursor
+ * (next sequence to read) and never block writers. Writer claims sequence with one atomic increment
+ * and publishes the slot with one volatile store; readers lapped by writers continue from the oldest kept event.
+ */
+public class EventRing {
+
+    private final AtomicReferenceArray<Event> slots;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final ConcurrentHashMap<Thread, Boolean> waiters = new ConcurrentHashMap<>();
+
+    public EventRing(int capacity) {
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    public long publish(String message) {
+        long sequence = claimed.getAndIncrement();
+        slots.set((int) (sequence & mask), new Event(sequence, message));
+        if (!waiters.isEmpty()) {
+            for (Thread waiter : waiters.keySet()) LockSupport.unpark(waiter);
+        }
+        return sequence;
+    }
+
+    //sequence of next event to be published
+    public long getHead() {
+        return claimed.get();
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    //first element is the cursor to continue from, then published events starting from cursor
+    public ArrayList<String> read(long cursor) {
+        ArrayList<String> result = new ArrayList<>();
+        long head = claimed.get();
+        if (cursor < 0 || cursor > head) cursor = head;
+        if (head - cursor > slots.length()) cursor = head - slots.length();
+        result.add("");
+        while (cursor < head) {
+            Event event = slots.get((int) (cursor & mask));
+            if (event == null || event.sequence < cursor) break;        //claimed but not yet published
+            if (event.sequence > cursor) {                              //overwritten, skip to oldest kept event
+                cursor = Math.max(cursor + 1, claimed.get() - slots.length());
+                continue;
+            }
+            result.add(event.message);
+            cursor++;
+        }
+        result.set(0, "" + cursor);
+        return result;
+    }
+
+    //waits until some event after cursor is published, returns false on timeout
+    public boolean await(long cursor, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread current = Thread.currentThread();
+        waiters.put(current, Boolean.TRUE);
+        try {
+            while (claimed.get() <= cursor) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || current.isInterrupted()) return false;
+                LockSupport.parkNanos(this, remaining);
+            }
+            return true;
+        } finally {
+            waiters.remove(current);
+        }
+    }
+
+    private static class Event {
+        final long sequence;
+        final String message;
+
+        Event(long sequence, String message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared executor for request and response stages of the dispatcher.
+ * <p>
+ * executor.mode=pool (default) runs stages on a bounded thread pool (executor.threads, executor.queue),
+ * executor.mode=virtual uses a virtual thread per task when the runtime supports it.
+ * When pool queue is full task goes to small overflow pool (executor.overflow.threads, executor.overflow.queue),
+ * never to the caller (it may be timeout wheel thread). When overflow is full too the task is rejected:
+ * Rejectable task completes itself without running, other tasks are dropped.
+ */
+public class ExecutionEngine implements Executor {
+
+    private static Logger LOG = Logger.getLogger("ExecutionEngine");
+
+    private ExecutorService executor;
+    private ExecutorService overflow;
+    private String mode;
+
+    private AtomicInteger queuedTasks = new AtomicInteger();
+    private AtomicInteger activeTasks = new AtomicInteger();
+    private AtomicLong completedTasks = new AtomicLong();
+    private AtomicLong rejectedTasks = new AtomicLong();
+
+    public ExecutionEngine(DispatcherConfig config) {
+        mode = config.getString("executor.mode", "pool").toLowerCase();
+        if (mode.equals("virtual")) {
+            executor = createVirtualExecutor();
+            if (executor == null) {
+                LOG.error("Virtual threads are not supported by this runtime, falling back to thread pool");
+                mode = "pool";
+            }
+        }
+        if (executor == null) {
+            int threads = config.getInt("executor.threads", Runtime.getRuntime().availableProcessors() * 8);
+            int queue = config.getInt("executor.queue", 10000);
+            int overflowThreads = Math.max(1, config.getInt("executor.overflow.threads", 2));
+            int overflowQueue = config.getInt("executor.overflow.queue", 1000);
+            overflow = new ThreadPoolExecutor(overflowThreads, overflowThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1, overflowQueue)),
+                    new NamedThreadFactory("dispatcher-overflow"));
+            ((ThreadPoolExecutor) overflow).allowCoreThreadTimeOut(true);
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queue),
+                    new NamedThreadFactory("dispatcher-worker"), new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable task, ThreadPoolExecutor pool) {
+                    if (pool.isShutdown()) throw new RejectedExecutionException("execution engine is shut down");
+                    try {
+                        overflow.execute(task);
+                    } catch (RejectedExecutionException e) {
+                        throw new RejectedExecutionException("queue and overflow queue are full");
+                    }
+                }
+            });
+            ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+            LOG.info("Execution engine initialized: pool of " + threads + " threads, queue " + queue);
+        } else {
+            LOG.info("Execution engine initialized: virtual threads");
+        }
+    }
+
+    private ExecutorService createVirtualExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        queuedTasks.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queuedTasks.decrementAndGet();
+                    activeTasks.incrementAndGet();
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        LOG.error("Error in dispatcher task: " + e.getMessage(), e);
+                    } finally {
+                        activeTasks.decrementAndGet();
+                        completedTasks.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queuedTasks.decrementAndGet();
+            rejectedTasks.incrementAndGet();
+            LOG.error("Task rejected: " + e.getMessage());
+            if (task instanceof Rejectable) ((Rejectable) task).rejected();
+        }
+    }
+
+    //future fails when task throws or is rejected
+    public CompletableFuture<Void> run(final Runnable task) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        execute(new Rejectable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                    future.complete(null);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                }
+            }
+
+            @Override
+            public void rejected() {
+                future.completeExceptionally(new RejectedExecutionException("task is rejected by execution engine"));
+            }
+        });
+        return future;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public int getQueueDepth() {
+        return queuedTasks.get();
+    }
+
+    public int getActiveTasks() {
+        return activeTasks.get();
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.get();
+    }
+
+    public long getRejectedTasks() {
+        return rejectedTasks.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        if (overflow != null) overflow.shutdown();
+    }
+
+    //task which is told when it won't run, so whoever waits for it is released (called on submitting thread)
+    public interface Rejectable extends Runnable {
+        void rejected();
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
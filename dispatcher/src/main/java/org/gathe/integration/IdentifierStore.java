@@ -0,0 +1,314 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Identifier history (uuid <-> identifier value for identifier name) over the "identifiers" table.
+ * Lookups go through bounded LRU caches (one per direction), then pending stores, and hit the database only on miss;
+ * unknown keys are cached too. Stores are cached immediately and written by own thread in batches with one commit
+ * per batch, callers never wait for the database write.
+ * The latest stored value wins, both in cache and in database.
+ */
+public class IdentifierStore extends Thread {
+
+    private static Logger LOG = Logger.getLogger("IdentifierStore");
+
+    private final Connection connection;
+    private PreparedStatement insertStatement;
+    private PreparedStatement uuidStatement;
+    private PreparedStatement valueStatement;
+
+    private final Lru uuids;            //name + value -> uuid
+    private final Lru values;           //uuid + name -> value
+    private final Lru unknown;          //keys of both directions not found in database
+    private final ArrayList<String[]> pending = new ArrayList<>();
+    //keys of pending stores (guarded by pending), evicted cache entry is still found here until it is written
+    private final HashMap<String, String> pendingUuids = new HashMap<>();
+    private final HashMap<String, String> pendingValues = new HashMap<>();
+    private final int batchSize;
+    private final long flushInterval;
+    private volatile boolean stopped = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+
+    public IdentifierStore(Connection connection, int cacheSize, int batchSize, long flushInterval) {
+        super("IdentifierStore");
+        setDaemon(true);
+        this.connection = connection;
+        this.uuids = new Lru(cacheSize);
+        this.values = new Lru(cacheSize);
+        this.unknown = new Lru(cacheSize);
+        this.batchSize = (batchSize > 0) ? batchSize : 1;
+        this.flushInterval = flushInterval;
+        if (connection == null) return;
+        try {
+            Statement st = connection.createStatement();
+            try {
+                st.executeUpdate("CREATE INDEX identifiers_value ON identifiers (identifier_name, identifier_value)");
+            } catch (SQLException e) {
+                //already exists
+            }
+            try {
+                st.executeUpdate("CREATE INDEX identifiers_uuid ON identifiers (uuid, identifier_name)");
+            } catch (SQLException e) {
+                //already exists
+            }
+            st.close();
+            insertStatement = connection.prepareStatement("INSERT INTO identifiers (uuid,identifier_name,identifier_value) VALUES (?,?,?)");
+            uuidStatement = connection.prepareStatement("SELECT uuid FROM identifiers WHERE identifier_name=? AND identifier_value=? ORDER BY id DESC LIMIT 1");
+            valueStatement = connection.prepareStatement("SELECT identifier_value FROM identifiers WHERE uuid=? AND identifier_name=? ORDER BY id DESC LIMIT 1");
+        } catch (SQLException e) {
+            LOG.error("Error when preparing identifiers store: " + e.getMessage());
+        }
+    }
+
+    public void store(String uuid, String identifierName, String identifierValue) {
+        synchronized (pending) {
+            enqueue(uuid, identifierName, identifierValue);
+            if (pending.size() >= batchSize) pending.notify();
+        }
+        if (stopped) flush();
+    }
+
+    public void storeAll(String uuid, Map<String, String> identifiers) {
+        synchronized (pending) {
+            for (Map.Entry<String, String> entry : identifiers.entrySet()) enqueue(uuid, entry.getKey(), entry.getValue());
+            if (pending.size() >= batchSize) pending.notify();
+        }
+        if (stopped) flush();
+    }
+
+    //called with pending lock
+    private void enqueue(String uuid, String identifierName, String identifierValue) {
+        String uuidKey = identifierName + "\n" + identifierValue;
+        String valueKey = uuid + "\n" + identifierName;
+        uuids.put(uuidKey, uuid);
+        values.put(valueKey, identifierValue);
+        unknown.remove(uuidKey);
+        unknown.remove(valueKey);
+        pendingUuids.put(uuidKey, uuid);
+        pendingValues.put(valueKey, identifierValue);
+        pending.add(new String[]{uuid, identifierName, identifierValue});
+    }
+
+    public String fetchUuid(String identifierName, String identifierValue) {
+        String key = identifierName + "\n" + identifierValue;
+        String uuid = uuids.get(key);
+        if (uuid == null) {
+            synchronized (pending) {
+                uuid = pendingUuids.get(key);
+            }
+        }
+        if (uuid != null || unknown.get(key) != null) {
+            hits.incrementAndGet();
+            return uuid;
+        }
+        misses.incrementAndGet();
+        uuid = query(uuidStatement, identifierName, identifierValue);
+        if (uuid != null) uuids.put(key, uuid);
+        else unknown.put(key, "");
+        return uuid;
+    }
+
+    public String fetchValue(String identifierName, String uuid) {
+        String key = uuid + "\n" + identifierName;
+        String value = values.get(key);
+        if (value == null) {
+            synchronized (pending) {
+                value = pendingValues.get(key);
+            }
+        }
+        if (value != null || unknown.get(key) != null) {
+            hits.incrementAndGet();
+            return value;
+        }
+        misses.incrementAndGet();
+        value = query(valueStatement, uuid, identifierName);
+        if (value != null) values.put(key, value);
+        else unknown.put(key, "");
+        return value;
+    }
+
+    //a batch taken from pending keys is visible here once it is committed (flush holds connection meanwhile)
+    private String query(PreparedStatement statement, String first, String second) {
+        if (statement == null) return null;
+        synchronized (connection) {
+            try {
+                statement.setString(1, first);
+                statement.setString(2, second);
+                ResultSet rs = statement.executeQuery();
+                try {
+                    if (rs.next()) return rs.getString(1);
+                } finally {
+                    rs.close();
+                }
+            } catch (SQLException e) {
+                LOG.error("Error when fetching identifier: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    //write pending identifiers in one transaction
+    public void flush() {
+        if (insertStatement == null) {
+            synchronized (pending) {
+                pending.clear();
+                pendingUuids.clear();
+                pendingValues.clear();
+            }
+            return;
+        }
+        synchronized (connection) {         //taken before batch, so reader never overtakes a running flush
+            ArrayList<String[]> batch;
+            synchronized (pending) {
+                if (pending.isEmpty()) return;
+                batch = new ArrayList<>(pending);
+                pending.clear();
+                pendingUuids.clear();
+                pendingValues.clear();
+            }
+            try {
+                connection.setAutoCommit(false);
+                for (String[] row : batch) {
+                    insertStatement.setString(1, row[0]);
+                    insertStatement.setString(2, row[1]);
+                    insertStatement.setString(3, row[2]);
+                    insertStatement.addBatch();
+                }
+                insertStatement.executeBatch();
+                connection.commit();
+                stored.addAndGet(batch.size());
+            } catch (SQLException e) {
+                LOG.error("Error occured when storing identifiers: " + e.getMessage());
+                try {
+                    connection.rollback();
+                } catch (SQLException e2) {
+                }
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    public int getPending() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public int getCacheSize() {
+        return uuids.size() + values.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getStored() {
+        return stored.get();
+    }
+
+    //pending identifiers are written before thread exits, later stores are written immediately
+    public void shutdown() {
+        stopped = true;
+        synchronized (pending) {
+            pending.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            synchronized (pending) {
+                if (pending.size() < batchSize) {
+                    try {
+                        pending.wait(flushInterval);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+            flush();
+        }
+        flush();
+        LOG.info("Identifier store stopped");
+    }
+
+    private static class Lru {
+        private final BoundedMap map;
+
+        Lru(int capacity) {
+            map = new BoundedMap(capacity);
+        }
+
+        synchronized String get(String key) {
+            return map.get(key);
+        }
+
+        synchronized void put(String key, String value) {
+            map.put(key, value);
+        }
+
+        synchronized void remove(String key) {
+            map.remove(key);
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+
+    //access ordered, the least recently used entry is dropped over capacity
+    private static class BoundedMap extends LinkedHashMap<String, String> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        BoundedMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * State of one request routed by dispatcher (keyed by messageId in EndpointManager):
+ * routing data, endpoints we are still waiting for and responses accepted so far.
+ * Request is completed once (by completion policy or by timeout), later responses are dropped.
+ */
+public class InFlightRequest {
+
+    private final String messageId;
+    private final String commonAction;
+    private final String action;
+    private final String className;
+    private final String identifier;
+    private final String replyTo;
+    private final HashMap<String, String> headers;
+    private final ResponseHandler responseHandler;
+    private final CompletionPolicy policy;
+    private final int endpointsCount;
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    //endpoint name -> time of request
+    private final ConcurrentHashMap<String, Long> waiting = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Reply> replies = new ConcurrentLinkedQueue<>();
+    private volatile TimeoutWheel.Timeout timeout;
+
+    public InFlightRequest(String messageId, String commonAction, String className, String identifier, String replyTo, HashMap<String, String> headers, ResponseHandler responseHandler, CompletionPolicy policy, Collection<String> endpoints) {
+        this.messageId = messageId;
+        this.commonAction = commonAction;
+        int dot = commonAction.indexOf('.');
+        this.action = ((dot < 0) ? commonAction : commonAction.substring(0, dot)).toLowerCase();
+        this.className = className;
+        this.identifier = identifier;
+        this.replyTo = replyTo;
+        this.headers = (headers != null) ? headers : new HashMap<String, String>();
+        this.responseHandler = responseHandler;
+        this.policy = (policy != null) ? policy : CompletionPolicy.ALL;
+        this.endpointsCount = endpoints.size();
+        for (String endpointName : endpoints) {
+            waiting.put(endpointName, startTime);
+        }
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getCommonAction() {
+        return commonAction;
+    }
+
+    //lowercase first part of routing key
+    public String getAction() {
+        return action;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public String getReplyTo() {
+        return replyTo;
+    }
+
+    public HashMap<String, String> getHeaders() {
+        return headers;
+    }
+
+    public ResponseHandler getResponseHandler() {
+        return responseHandler;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public Set<String> getWaitingEndpoints() {
+        return waiting.keySet();
+    }
+
+    //null when endpoint already answered (or was not asked)
+    public Long getRequestTime(String endpointName) {
+        return waiting.get(endpointName);
+    }
+
+    public CompletionPolicy getPolicy() {
+        return policy;
+    }
+
+    //returns true (only once) when request is complete by its policy
+    public boolean addResponse(String endpointName, String content) {
+        if (completed.get()) return false;          //late response
+        if (responseHandler != null) responseHandler.onResponse(endpointName, content);
+        replies.add(new Reply(endpointName, content));
+        waiting.remove(endpointName);
+        if (!policy.isComplete(content, replies.size(), endpointsCount, waiting.isEmpty())) return false;
+        return complete();
+    }
+
+    //endpoint won't answer (its response is lost), returns true (only once) when nobody else is waited for
+    public boolean fail(String endpointName) {
+        if (completed.get() || waiting.remove(endpointName) == null) return false;
+        if (!waiting.isEmpty()) return false;
+        return complete();
+    }
+
+    //returns false when request is already completed
+    public boolean complete() {
+        return completed.compareAndSet(false, true);
+    }
+
+    public boolean isCompleted() {
+        return completed.get();
+    }
+
+    public ArrayList<String> getResponses() {
+        ArrayList<String> result = new ArrayList<>();
+        for (Reply reply : replies) result.add(reply.content);
+        return result;
+    }
+
+    public ArrayList<String> getResponders() {
+        ArrayList<String> result = new ArrayList<>();
+        for (Reply reply : replies) result.add(reply.endpointName);
+        return result;
+    }
+
+    //previous deadline (if any) is replaced
+    public synchronized void setTimeout(TimeoutWheel.Timeout timeout) {
+        if (this.timeout != null) this.timeout.cancel();
+        this.timeout = timeout;
+    }
+
+    public synchronized void cancelTimeout() {
+        if (timeout != null) timeout.cancel();
+    }
+
+    static class Reply {
+        final String endpointName;
+        final String content;
+
+        Reply(String endpointName, String content) {
+            this.endpointName = endpointName;
+            this.content = content;
+        }
+    }
+}
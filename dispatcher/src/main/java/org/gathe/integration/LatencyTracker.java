@@ -0,0 +1,109 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Response latencies per action and endpoint. Request deadline is the largest percentile of endpoints
+ * it is sent to (multiplied by margin, limited by floor and ceiling). Until every endpoint
+ * has enough samples the configured action timeout is used.
+ */
+public class LatencyTracker {
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>> histograms = new ConcurrentHashMap<>();      //action -> endpoint -> histogram
+    private final boolean adaptive;
+    private final double percentile;
+    private final double margin;
+    private final long floor;
+    private final long ceiling;
+    private final long minSamples;
+    private final long window;
+
+    public LatencyTracker(DispatcherConfig config) {
+        adaptive = config.getBoolean("timeout.adaptive", true);
+        percentile = getDouble(config, "timeout.percentile", 99);
+        margin = getDouble(config, "timeout.margin", 1.5);
+        floor = config.getLong("timeout.floor", 200);
+        ceiling = config.getLong("timeout.ceiling", 30000);
+        minSamples = config.getLong("timeout.samples", 20);
+        window = config.getLong("latency.window", 10000);
+    }
+
+    private static double getDouble(DispatcherConfig config, String key, double defaultValue) {
+        try {
+            return Double.parseDouble(config.getString(key, "" + defaultValue));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private LatencyHistogram histogram(String action, String endpointName) {
+        ConcurrentHashMap<String, LatencyHistogram> actionHistograms = histograms.get(action);
+        if (actionHistograms == null) {
+            ConcurrentHashMap<String, LatencyHistogram> created = new ConcurrentHashMap<>();
+            actionHistograms = histograms.putIfAbsent(action, created);
+            if (actionHistograms == null) actionHistograms = created;
+        }
+        LatencyHistogram histogram = actionHistograms.get(endpointName);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(window);
+            histogram = actionHistograms.putIfAbsent(endpointName, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    public void record(String action, String endpointName, long millis) {
+        histogram(action, endpointName).record(millis);
+    }
+
+    //missed deadline is a sample too, otherwise percentile follows only fast answers and deadline only shrinks
+    public void timeout(String action, String endpointName, long millis) {
+        LatencyHistogram histogram = histogram(action, endpointName);
+        histogram.timeout();
+        histogram.record(millis);
+    }
+
+    public long getTimeout(String action, Collection<String> endpoints, long defaultTimeout) {
+        if (!adaptive || endpoints.isEmpty()) return defaultTimeout;
+        ConcurrentHashMap<String, LatencyHistogram> actionHistograms = histograms.get(action);
+        if (actionHistograms == null) return defaultTimeout;
+        long timeout = 0;
+        for (String endpointName : endpoints) {
+            LatencyHistogram histogram = actionHistograms.get(endpointName);
+            if (histogram == null || histogram.getCount() < minSamples) return defaultTimeout;
+            timeout = Math.max(timeout, (long) (histogram.getPercentile(percentile) * margin));
+        }
+        return Math.min(Math.max(timeout, floor), ceiling);
+    }
+
+    //action.endpoint -> histogram, sorted
+    public Map<String, LatencyHistogram> getHistograms() {
+        TreeMap<String, LatencyHistogram> result = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, LatencyHistogram>> action : histograms.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> endpoint : action.getValue().entrySet()) {
+                result.put(action.getKey() + "." + endpoint.getKey(), endpoint.getValue());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,135 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Results of paged matchall requests. Result is kept as one comma separated string with offsets of uuids,
+ * requester fetches pages by cursor and offset. Cursor is dropped when it is not used for ttl milliseconds
+ * (or as the oldest one when there are too many), so any page may be requested again till then.
+ */
+public class MatchCursors {
+
+    private final ConcurrentHashMap<String, Cursor> cursors = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final long ttl;
+
+    public MatchCursors(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+
+    public String open(String result) {
+        evict();
+        String id = UUID.randomUUID().toString();
+        cursors.put(id, new Cursor(result));
+        return id;
+    }
+
+    //null when cursor is unknown or expired
+    public Page page(String id, int offset, int size) {
+        Cursor cursor = (id != null) ? cursors.get(id) : null;
+        if (cursor == null) return null;
+        cursor.lastAccess = System.currentTimeMillis();
+        int total = cursor.starts.length;
+        if (offset < 0) offset = 0;
+        if (size <= 0) size = total;
+        int end = (int) Math.min((long) offset + size, total);
+        String content = "";
+        if (offset < end) {
+            int to = (end < total) ? cursor.starts[end] - 1 : cursor.result.length();
+            content = cursor.result.substring(cursor.starts[offset], to);
+        }
+        return new Page(content, (end < total) ? end : -1, total);
+    }
+
+    public int size() {
+        return cursors.size();
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Cursor>> iterator = cursors.entrySet().iterator();
+        String oldest = null;
+        long oldestAccess = Long.MAX_VALUE;
+        while (iterator.hasNext()) {
+            Map.Entry<String, Cursor> entry = iterator.next();
+            long lastAccess = entry.getValue().lastAccess;
+            if (now - lastAccess > ttl) {
+                iterator.remove();
+            } else if (lastAccess < oldestAccess) {
+                oldestAccess = lastAccess;
+                oldest = entry.getKey();
+            }
+        }
+        if (oldest != null && cursors.size() >= capacity) cursors.remove(oldest);
+    }
+
+    public static class Page {
+        private final String content;
+        private final int next;
+        private final int total;
+
+        Page(String content, int next, int total) {
+            this.content = content;
+            this.next = next;
+            this.total = total;
+        }
+
+        //comma separated uuids
+        public String getContent() {
+            return content;
+        }
+
+        //offset of next page, -1 for the last page
+        public int getNext() {
+            return next;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    private static class Cursor {
+        final String result;
+        final int[] starts;
+        volatile long lastAccess = System.currentTimeMillis();
+
+        Cursor(String result) {
+            this.result = result;
+            if (result.isEmpty()) {
+                starts = new int[0];
+                return;
+            }
+            int count = 1;
+            for (int i = 0; i < result.length(); i++) {
+                if (result.charAt(i) == ',') count++;
+            }
+            starts = new int[count];
+            int position = 0;
+            for (int i = 0; i < result.length(); i++) {
+                if (result.charAt(i) == ',') starts[++position] = i + 1;
+            }
+        }
+    }
+}
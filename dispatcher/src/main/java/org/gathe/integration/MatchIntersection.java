@@ -0,0 +1,81 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.HashSet;
+
+/**
+ * Intersection of comma separated uuid lists (match responses), updated as every response arrives.
+ * Result keeps order (and repeats) of the first response, uuid is kept when every other response contains it.
+ */
+public class MatchIntersection {
+
+    private String[] first;
+    private HashSet<String> candidates;
+    private int responses = 0;
+
+    public synchronized void add(String response) {
+        if (response == null) response = "";
+        responses++;
+        if (first == null) {
+            first = response.split(",");
+            candidates = new HashSet<>(first.length * 2);
+            for (String uuid : first) candidates.add(uuid);
+            return;
+        }
+        if (candidates.isEmpty()) return;
+        HashSet<String> kept = new HashSet<>(Math.min(candidates.size(), 1024) * 2);
+        //same tokens as String.split: trailing empty ones are dropped, unless response is empty
+        boolean empty = false;
+        int start = 0;
+        int length = response.length();
+        while (start < length) {
+            int end = response.indexOf(',', start);
+            if (end < 0) end = length;
+            if (end == start) {
+                empty = true;
+            } else {
+                if (empty && candidates.contains("")) kept.add("");
+                empty = false;
+                String uuid = response.substring(start, end);
+                if (candidates.contains(uuid)) kept.add(uuid);
+            }
+            start = end + 1;
+        }
+        if (response.isEmpty() && candidates.contains("")) kept.add("");
+        candidates = kept;
+    }
+
+    public synchronized int getResponses() {
+        return responses;
+    }
+
+    //comma separated
+    public synchronized String getResult() {
+        if (first == null) return "";
+        StringBuilder result = new StringBuilder();
+        boolean separator = false;
+        for (String uuid : first) {
+            if (!candidates.contains(uuid)) continue;
+            if (separator) result.append(',');
+            result.append(uuid);
+            separator = true;
+        }
+        return result.toString();
+    }
+}
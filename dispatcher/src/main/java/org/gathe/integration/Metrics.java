@@ -0,0 +1,165 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatcher counters and cumulative latency histograms (/metrics, Prometheus text format).
+ * Counters of known actions are created upfront (unknown ones go to "other"), histograms on first sample,
+ * so recording doesn't allocate. Histograms don't fade out (unlike LatencyTracker ones used for deadlines).
+ */
+public class Metrics {
+
+    private static final String[] ACTIONS = {"hello", "bye", "pong", "get", "update", "remove", "identify", "unify", "specify",
+            "matchall", "matchpage", "check", "got", "identifyresponse", "unifyresponse", "specifyresponse", "matchresponse", "checkresponse"};
+    private static final String OTHER = "other";
+    private static final long[] BOUNDS = LatencyHistogram.getBounds();
+
+    //filled in constructor, read only after that
+    private final HashMap<String, AtomicLong> messages = new HashMap<>();
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong chunkChars = new AtomicLong();
+    private final ConcurrentHashMap<String, LatencyHistogram> requests = new ConcurrentHashMap<>();
+    //action -> endpoint -> histogram
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>> responses = new ConcurrentHashMap<>();
+
+    public Metrics() {
+        for (String action : ACTIONS) messages.put(action, new AtomicLong());
+        messages.put(OTHER, new AtomicLong());
+    }
+
+    //action is lowercase first part of routing key
+    public void message(String action) {
+        AtomicLong counter = messages.get(action);
+        if (counter == null) counter = messages.get(OTHER);
+        counter.incrementAndGet();
+    }
+
+    //chunk of multi-part response, length in characters
+    public void chunk(int length) {
+        chunks.incrementAndGet();
+        chunkChars.addAndGet(length);
+    }
+
+    //request start to completion (by policy or timeout)
+    public void request(String action, long millis) {
+        histogram(requests, action).record(millis);
+    }
+
+    public void response(String action, String endpointName, long millis) {
+        histogram(action, endpointName).record(millis);
+    }
+
+    public void timeout(String action, String endpointName) {
+        histogram(action, endpointName).timeout();
+    }
+
+    private LatencyHistogram histogram(String action, String endpointName) {
+        ConcurrentHashMap<String, LatencyHistogram> endpoints = responses.get(action);
+        if (endpoints == null) {
+            ConcurrentHashMap<String, LatencyHistogram> created = new ConcurrentHashMap<>();
+            endpoints = responses.putIfAbsent(action, created);
+            if (endpoints == null) endpoints = created;
+        }
+        return histogram(endpoints, endpointName);
+    }
+
+    private static LatencyHistogram histogram(ConcurrentHashMap<String, LatencyHistogram> histograms, String key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(0);
+            histogram = histograms.putIfAbsent(key, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    public void write(PrintWriter out) {
+        header(out, "gathe_messages_total", "counter", "Messages received by dispatcher");
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(messages).entrySet()) {
+            out.println("gathe_messages_total{action=\"" + entry.getKey() + "\"} " + entry.getValue().get());
+        }
+        counter(out, "gathe_response_chunks_total", "Chunks of multi-part responses", chunks.get());
+        counter(out, "gathe_response_chunk_chars_total", "Characters of multi-part response chunks", chunkChars.get());
+
+        header(out, "gathe_request_duration_seconds", "histogram", "Time from request to its completion");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(requests).entrySet()) {
+            histogram(out, "gathe_request_duration_seconds", "action=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        header(out, "gathe_response_duration_seconds", "histogram", "Time from request to endpoint response");
+        TreeMap<String, LatencyHistogram> timeouts = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentHashMap<String, LatencyHistogram>> action : new TreeMap<>(responses).entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> endpoint : new TreeMap<>(action.getValue()).entrySet()) {
+                String labels = "action=\"" + action.getKey() + "\",endpoint=\"" + escape(endpoint.getKey()) + "\"";
+                histogram(out, "gathe_response_duration_seconds", labels, endpoint.getValue());
+                timeouts.put(labels, endpoint.getValue());
+            }
+        }
+        header(out, "gathe_response_timeouts_total", "counter", "Requests completed without endpoint response");
+        for (Map.Entry<String, LatencyHistogram> entry : timeouts.entrySet()) {
+            out.println("gathe_response_timeouts_total{" + entry.getKey() + "} " + entry.getValue().getTimeouts());
+        }
+    }
+
+    private static void histogram(PrintWriter out, String name, String labels, LatencyHistogram histogram) {
+        long[] counts;
+        long sum;
+        synchronized (histogram) {
+            counts = histogram.getCounts();
+            sum = histogram.getSum();
+        }
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            cumulative += counts[i];
+            out.println(name + "_bucket{" + labels + ",le=\"" + seconds(BOUNDS[i]) + "\"} " + cumulative);
+        }
+        cumulative += counts[BOUNDS.length];
+        out.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " + cumulative);
+        out.println(name + "_sum{" + labels + "} " + seconds(sum));
+        out.println(name + "_count{" + labels + "} " + cumulative);
+    }
+
+    private static String seconds(long millis) {
+        return Double.toString(millis / 1000.0);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void header(PrintWriter out, String name, String type, String help) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " " + type);
+    }
+
+    public static void gauge(PrintWriter out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        out.println(name + " " + value);
+    }
+
+    public static void counter(PrintWriter out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.println(name + " " + value);
+    }
+}
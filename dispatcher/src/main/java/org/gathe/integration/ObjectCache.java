@@ -0,0 +1,148 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of request results per object (uuid and requested class -> value) with ttl,
+ * ttl may be defined per class. Object is dropped on update/remove, whole cache when registry changes.
+ * Result of request started before the last invalidation of its object (or before clear) is not stored:
+ * request takes a sequence number when it starts, invalidations are numbered by the same sequence.
+ */
+public class ObjectCache {
+
+    private final int capacity;
+    private final long ttl;
+    private final ConcurrentHashMap<String, Long> classTtls = new ConcurrentHashMap<>();
+    private final LruMap<HashMap<String, Entry>> objects;
+    private long sequence = 0;
+    private long epoch = 0;                 //last clear, or the oldest invalidation forgotten
+    private final LinkedHashMap<String, Long> invalidations = new LinkedHashMap<>();        //uuid -> sequence of its last invalidation
+    private final int tracked;              //invalidations remembered
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ObjectCache(final int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+        this.objects = new LruMap<>(capacity);
+        this.tracked = Math.max(capacity, 1000);
+    }
+
+    public void setTtl(String className, long classTtl) {
+        classTtls.put(className, classTtl);
+    }
+
+    public synchronized String get(String uuid, String className) {
+        if (capacity <= 0 || uuid == null) return null;
+        HashMap<String, Entry> classes = objects.get(uuid);
+        Entry entry = (classes != null) ? classes.get(className) : null;
+        if (entry == null || entry.expires < System.currentTimeMillis()) {
+            if (entry != null) classes.remove(className);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    //generation should be taken before request is sent
+    public synchronized long getGeneration() {
+        return sequence;
+    }
+
+    public synchronized void put(String uuid, String className, String value, long requestGeneration) {
+        if (capacity <= 0 || uuid == null || value == null || requestGeneration < epoch) return;
+        Long invalidated = invalidations.get(uuid);
+        if (invalidated != null && invalidated > requestGeneration) return;
+        Long classTtl = classTtls.get(className);
+        long expires = System.currentTimeMillis() + ((classTtl != null) ? classTtl : ttl);
+        HashMap<String, Entry> classes = objects.get(uuid);
+        if (classes == null) {
+            classes = new HashMap<>();
+            objects.put(uuid, classes);
+        }
+        classes.put(className, new Entry(value, expires));
+    }
+
+    public synchronized void invalidate(String uuid) {
+        if (uuid == null) return;
+        sequence++;
+        invalidations.remove(uuid);         //keeps invalidations ordered by sequence
+        invalidations.put(uuid, sequence);
+        if (invalidations.size() > tracked) {
+            //requests started before forgotten invalidation are not cached at all
+            Iterator<Long> eldest = invalidations.values().iterator();
+            epoch = Math.max(epoch, eldest.next());
+            eldest.remove();
+        }
+        objects.remove(uuid);
+    }
+
+    public synchronized void clear() {
+        sequence++;
+        epoch = sequence;
+        invalidations.clear();
+        objects.clear();
+    }
+
+    public synchronized int size() {
+        return objects.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    //access ordered, the least recently used entry is dropped over capacity
+    private static class LruMap<V> extends LinkedHashMap<String, V> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private static class Entry {
+        final String value;
+        final long expires;
+
+        Entry(String value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
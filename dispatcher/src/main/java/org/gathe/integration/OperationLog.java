@@ -0,0 +1,206 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Operation log (action and endpoint per routed request) over the "log" table of operations database.
+ * Operations are queued and written by own thread in batches, one commit per batch (when batch is full
+ * or flush interval is over). When queue is full operation is dropped, or caller waits in blocking mode
+ * if it may wait (timer, registry and routing stages never wait).
+ */
+public class OperationLog extends Thread {
+
+    private static Logger LOG = Logger.getLogger("OperationLog");
+
+    private final Connection connection;
+    private PreparedStatement insertStatement;
+    private PreparedStatement summaryStatement;
+
+    private final LinkedBlockingQueue<Operation> queue;
+    private final int batchSize;
+    private final long flushInterval;
+    private final boolean blocking;
+    private volatile boolean stopped = false;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public OperationLog(Connection connection, int queueSize, int batchSize, long flushInterval, boolean blocking) {
+        super("OperationLog");
+        setDaemon(true);
+        this.connection = connection;
+        this.queue = new LinkedBlockingQueue<>((queueSize > 0) ? queueSize : 1);
+        this.batchSize = (batchSize > 0) ? batchSize : 1;
+        this.flushInterval = flushInterval;
+        this.blocking = blocking;
+        if (connection == null) return;
+        try {
+            Statement st = connection.createStatement();
+            try {
+                st.executeUpdate("CREATE INDEX log_dtime ON log (dtime)");
+            } catch (SQLException e) {
+                //already exists
+            }
+            st.close();
+            insertStatement = connection.prepareStatement("INSERT INTO log (action,source,dtime) VALUES (?,?,?)");
+            summaryStatement = connection.prepareStatement("SELECT source, action, COUNT(*) FROM log WHERE dtime >= ? GROUP BY source, action ORDER BY source, action");
+        } catch (SQLException e) {
+            LOG.error("Error when preparing operation log: " + e.getMessage());
+        }
+    }
+
+    public void log(String action, String source, boolean mayWait) {
+        if (insertStatement == null) return;
+        Operation operation = new Operation(action, source, System.currentTimeMillis());
+        if (blocking && mayWait && !stopped) {
+            try {
+                queue.put(operation);
+            } catch (InterruptedException e) {
+                dropped.incrementAndGet();
+                Thread.currentThread().interrupt();
+            }
+        } else if (!queue.offer(operation)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    //source.action -> operations written during last window (milliseconds)
+    public LinkedHashMap<String, Long> summary(long window) {
+        LinkedHashMap<String, Long> result = new LinkedHashMap<>();
+        if (summaryStatement == null) return result;
+        synchronized (connection) {
+            try {
+                summaryStatement.setTimestamp(1, new Timestamp(System.currentTimeMillis() - window));
+                ResultSet rs = summaryStatement.executeQuery();
+                try {
+                    while (rs.next()) result.put(rs.getString(1) + "." + rs.getString(2), rs.getLong(3));
+                } finally {
+                    rs.close();
+                }
+            } catch (SQLException e) {
+                LOG.error("Error when summarizing operation log: " + e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private void write(ArrayList<Operation> batch) {
+        synchronized (connection) {
+            try {
+                connection.setAutoCommit(false);
+                for (Operation operation : batch) {
+                    insertStatement.setString(1, operation.action);
+                    insertStatement.setString(2, operation.source);
+                    insertStatement.setTimestamp(3, new Timestamp(operation.time));
+                    insertStatement.addBatch();
+                }
+                insertStatement.executeBatch();
+                connection.commit();
+                written.addAndGet(batch.size());
+            } catch (SQLException e) {
+                LOG.error("Error occured when writing operation log: " + e.getMessage());
+                dropped.addAndGet(batch.size());
+                try {
+                    connection.rollback();
+                } catch (SQLException e2) {
+                }
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    public int getPending() {
+        return queue.size();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    //queued operations are written before thread exits
+    public void shutdown() {
+        stopped = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        if (insertStatement == null) return;
+        ArrayList<Operation> batch = new ArrayList<>(batchSize);
+        while (!stopped) {
+            try {
+                Operation first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                //batch is collected until it is full or flush interval is over
+                long deadline = System.currentTimeMillis() + flushInterval;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long wait = deadline - System.currentTimeMillis();
+                    if (batch.size() >= batchSize || wait <= 0) break;
+                    Operation next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                //shutdown
+            }
+            if (!batch.isEmpty()) write(batch);
+            batch.clear();
+        }
+        while (queue.drainTo(batch, batchSize) > 0) {
+            write(batch);
+            batch.clear();
+        }
+        LOG.info("Operation log stopped");
+    }
+
+    private static class Operation {
+        final String action;
+        final String source;
+        final long time;
+
+        Operation(String action, String source, long time) {
+            this.action = action;
+            this.source = source;
+            this.time = time;
+        }
+    }
+}
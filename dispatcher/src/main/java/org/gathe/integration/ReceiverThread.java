@@ -21,7 +21,6 @@ import org.apache.qpid.amqp_1_0.jms.Queue;
 import org.apache.qpid.amqp_1_0.jms.Session;
 import org.apache.qpid.amqp_1_0.jms.TextMessage;
 import org.apache.qpid.amqp_1_0.jms.impl.ConnectionImpl;
-import org.w3c.dom.Document;
 
 import javax.jms.ConnectionFactory;
 import javax.jms.DeliveryMode;
@@ -29,13 +28,13 @@ import javax.jms.JMSException;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import java.io.File;
-import java.io.StringWriter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ReceiverThread extends Thread {
 
@@ -47,7 +46,17 @@ public class ReceiverThread extends Thread {
     org.apache.qpid.amqp_1_0.jms.impl.MessageProducerImpl selfProducer;
     org.apache.qpid.amqp_1_0.jms.impl.MessageConsumerImpl messageConsumer;
     org.apache.qpid.amqp_1_0.jms.impl.ConnectionImpl connection;
-    private HashMap<String, String> chunks = new HashMap<>();
+    private volatile boolean activated = false;
+    private volatile int connectionGeneration = 0;
+    private PartitionWorker registryWorker;
+    private PartitionWorker[] workers;
+    private ArrayList<ConsumerThread> consumers = new ArrayList<>();
+    private ChunkAssembler chunkAssembler;
+    private ChunkedSender sender;
+    private RequestCoalescer coalescer;
+    private MatchCursors matchCursors;
+    private static final List<String> registryActions = Arrays.asList("hello", "bye", "pong");
+    private static final List<String> chunkedActions = Arrays.asList("got", "identifyresponse", "matchresponse", "unifyresponse", "specifyresponse", "checkresponse", "hello");
     protected static HashMap<String, String> colors;
 
     static {
@@ -65,12 +74,6 @@ public class ReceiverThread extends Thread {
     ArrayList<String> uuidCommands = new ArrayList<>();
     org.apache.qpid.amqp_1_0.jms.impl.SessionImpl session;
 
-    protected String joinStrings(String glue, String[] array) {
-        String line = "";
-        for (String s : array) line += s + glue;
-        return (array.length == 0) ? line : line.substring(0, line.length() - glue.length());
-    }
-
 
     public void sendToProducer(TextMessage tm) {
 
@@ -90,62 +93,102 @@ public class ReceiverThread extends Thread {
     }
 
 
-    private void sendChunk(TextMessage textMessage, String chunk, int number, int count) {
+    public void sendToEndpointsProducer(TextMessage textMessage, String content) throws JMSException {
+        CompletableFuture<Void> sent = sender.send(textMessage, content);
+        if (endpointManager.getTraces().isEnabled()) {
+            //reply lasts until its last chunk is sent
+            final long start = System.currentTimeMillis();
+            final String transactionId = textMessage.getStringProperty("transactionId");
+            final String messageId = textMessage.getStringProperty("messageId");
+            final String replyTo = textMessage.getSubject();
+            sent.thenRun(() -> trace(transactionId, "reply", messageId, replyTo, start));
+        }
+    }
 
-        synchronized (endpointsProducer) {
+    //span of dispatcher stage till now
+    private void trace(String transactionId, String stage, String messageId, String endpointName, long start) {
+        Traces traces = endpointManager.getTraces();
+        if (traces.isEnabled()) traces.span(transactionId, stage, messageId, endpointName, start, System.currentTimeMillis());
+    }
 
-            boolean sent = false;
-            while (!sent) {
-                try {
-                    textMessage.setIntProperty("number", number);
-                    textMessage.setIntProperty("count", count);
-                    textMessage.setText(chunk);
-                    sent = true;
-                    endpointsProducer.send(textMessage);
-                } catch (JMSException e) {
-                    sent = false;
-                    try {
-                        LOG.error("Send error: " + e.getErrorCode() + ": " + e.getLocalizedMessage());
-                        Thread.sleep(1000);
-                    } catch (Exception e2) {
-                    }
-                }
+    private void startSender() {
+        DispatcherConfig config = endpointManager.getConfig();
+        sender = new ChunkedSender("dispatcher-sender", new ChunkedSender.Transport() {
+            @Override
+            public TextMessage createTextMessage() throws JMSException {
+                return session.createTextMessage();
+            }
+
+            @Override
+            public void send(TextMessage message) throws JMSException {
+                endpointsProducer.send(message);
+            }
+        }, config.getInt("chunk.size", ChunkedSender.DEFAULT_CHUNK_SIZE), config.getInt("sender.queue", 10000));
+        for (Map.Entry<String, String> entry : config.getValues("chunk.size.").entrySet()) {
+            try {
+                sender.setChunkSize(entry.getKey(), Integer.parseInt(entry.getValue()));
+            } catch (NumberFormatException e) {
+                LOG.error("Wrong chunk size for " + entry.getKey() + ": " + entry.getValue());
             }
         }
+        sender.start();
     }
 
-    public void sendToEndpointsProducer(TextMessage textMessage, String content) throws JMSException {
-
+    public ChunkedSender getSender() {
+        return sender;
+    }
 
-        if (content.isEmpty()) {
-            sendChunk(textMessage, "", 0, 1);
-        }
+    public RequestCoalescer getCoalescer() {
+        return coalescer;
+    }
 
-        int chunkSize = 16384;          //todo: define as parameter
+    public MatchCursors getMatchCursors() {
+        return matchCursors;
+    }
 
-        //split message
-        String subject = textMessage.getSubject();
-        HashMap<String, String> headers = new HashMap<>();
-        Enumeration<String> props = textMessage.getPropertyNames();
-        while (props.hasMoreElements()) {
-            String prop = props.nextElement();
-            headers.put(prop, textMessage.getStringProperty(prop));
+    private static int intProperty(TextMessage message, String name, int defaultValue) throws JMSException {
+        String value = message.getStringProperty(name);
+        if (value == null || value.isEmpty()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
+    }
 
-        int count = (content.length() + (chunkSize - 1)) / chunkSize;
-        for (int number = 0; number < count; number++) {
-            TextMessage tm = this.session.createTextMessage();
-            tm.setSubject(subject);
-            for (String headerName : headers.keySet()) {
-                tm.setStringProperty(headerName, headers.get(headerName));
-            }
-            int maxLimit = (number + 1) * chunkSize;
-            if (maxLimit > content.length()) maxLimit = content.length();
-            sendChunk(tm, content.substring(number * chunkSize, maxLimit), number, count);
-        }
+    private static void setPageProperties(TextMessage message, String cursor, MatchCursors.Page page) throws JMSException {
+        message.setStringProperty("cursor", cursor);
+        message.setStringProperty("next", (page.getNext() >= 0) ? "" + page.getNext() : "");
+        message.setStringProperty("total", "" + page.getTotal());
     }
 
+    //null when identical request is already in flight (requester will get its result), otherwise flight to be completed
+    private RequestCoalescer.Flight startFlight(String routingKey, String identifier, String content, String transactionId, String messageId, String replyTo, int count) {
+        RequestCoalescer.Follower follower = (replyTo != null && count <= 1) ? new RequestCoalescer.Follower(transactionId, messageId, replyTo) : null;
+        RequestCoalescer.Flight flight = coalescer.attach(RequestCoalescer.key(routingKey, identifier, content), identifier, follower);
+        if (flight == null) LOG.debug("Receiver: " + routingKey + " " + identifier + " is in flight, " + messageId + " attached");
+        return flight;
+    }
 
+    //leader result is sent to every attached requester; failed leader (handler is not run or failed before reply)
+    //gives empty reply to its own requester and to attached ones, as endpoints do when nothing is found
+    private void completeFlight(final RequestCoalescer.Flight flight, CompletableFuture<String> completion) {
+        completion.whenComplete((result, error) -> {
+            ArrayList<RequestCoalescer.Follower> requesters = new ArrayList<>(coalescer.complete(flight));
+            if (result == null && flight.getLeader() != null) requesters.add(0, flight.getLeader());
+            for (RequestCoalescer.Follower follower : requesters) {
+                try {
+                    TextMessage response = session.createTextMessage();
+                    response.setStringProperty("messageId", follower.getMessageId());
+                    response.setStringProperty("transactionId", follower.getTransactionId());
+                    response.setSubject(follower.getReplyTo());
+                    sendToEndpointsProducer(response, (result != null) ? result : "");
+                } catch (Exception e) {
+                    LOG.error("Error when sending coalesced response " + e.getMessage());
+                }
+            }
+        });
+    }
 
     public void connect() throws JMSException, NamingException {
         LOG.info("Connecting to MQ Broker");
@@ -188,6 +231,7 @@ public class ReceiverThread extends Thread {
 
         endpointManager.setSession(session);
         endpointManager.setMessageProducer(producer);
+        connectionGeneration++;
     }
 
     public ReceiverThread(EndpointManager endpointManager) {
@@ -195,6 +239,10 @@ public class ReceiverThread extends Thread {
         this.endpointManager = endpointManager;
 
         System.setProperty("max_prefetch", "1");
+        DispatcherConfig config = endpointManager.getConfig();
+        coalescer = new RequestCoalescer(config.getBoolean("coalesce", true), config.getLong("coalesce.ttl", 30000));
+        matchCursors = new MatchCursors(config.getInt("match.cursors", 1000), config.getLong("match.cursor.ttl", 60000));
+        startSender();
         try {
             this.connect();
 
@@ -212,14 +260,14 @@ public class ReceiverThread extends Thread {
 
     @Override
     public void run() {
+        startWorkers();
         try {
 
             String echoMessageId = UUID.randomUUID().toString();
-            boolean activated = false;
             boolean checkForEchoResponse = false;
-//            boolean isDisconnected = false;
 
             while (!endpointManager.isDisconnected()) {
+                int generation = connectionGeneration;
                 try {
                     Object message = null;
                     if (activated) {
@@ -262,416 +310,651 @@ public class ReceiverThread extends Thread {
                         discoverMessage.setStringProperty("messageId", UUID.randomUUID().toString());
                         sendToProducer(discoverMessage);
                         activated = true;
+                        startConsumers();
                         continue;
                     }
+                    dispatch(textMessage);
+                } catch (javax.jms.IllegalStateException e) {
+                    LOG.error("ESB disconnected. Closing!");
+                    endpointManager.disconnect();
+                } catch (JMSException e2) {
+                    reconnect(generation);
+                } catch (Exception e) {
+                    LOG.error("Receiver: Error in message loop " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
 
-                    LOG.debug("Accepted message " + textMessage);
-                    if (textMessage == null || textMessage.getSubject() == null) continue;
-
-                    String content = textMessage.getText();
-                    String messageId = textMessage.getStringProperty("messageId");
-                    String routingKey = textMessage.getSubject();
-                    String uuid = textMessage.getStringProperty("uuid");
-                    String transactionId = textMessage.getStringProperty("transactionId");
-                    String headers_id = textMessage.getStringProperty("id");
-                    String replyTo = textMessage.getReplyTo();
-                    LOG.debug("replyTo: " + replyTo);
-                    if (transactionId == null) transactionId = "";
-                    String[] keyParts = routingKey.split("\\.");
-
-                    String action = keyParts[0].toLowerCase();
-
-                    String[] actions = {"got", "identifyresponse", "matchresponse", "unifyresponse", "specifyresponse", "checkresponse", "hello"};
-                    List<String> actionsList = Arrays.asList(actions);
-                    LOG.debug("Action is " + action);
-                    if (actionsList.contains(action)) {
-                        //merge chunks
-                        int number = textMessage.getIntProperty("number");
-                        int count = textMessage.getIntProperty("count");
-                        LOG.debug("Data chunk (length: " + content.length() + ") " + number + "/" + count);
-
-                        if (!chunks.containsKey(messageId)) {
-                            chunks.put(messageId, "");
-                        }
+        } catch (Exception e) {
+            LOG.error("Error in receiver initialization " + e.getMessage());
+        } finally {
+            stopWorkers();
+        }
+        LOG.info("Leaving receiver thread");
+    }
+
+    private void startWorkers() {
+        DispatcherConfig config = endpointManager.getConfig();
+        chunkAssembler = new ChunkAssembler(config.getLong("chunks.message.max", ChunkAssembler.DEFAULT_MESSAGE_SIZE),
+                config.getLong("chunks.total.max", ChunkAssembler.DEFAULT_TOTAL_SIZE), config.getLong("chunks.ttl", ChunkAssembler.DEFAULT_TTL));
+        chunkAssembler.setListener(new ChunkAssembler.Listener() {
+            @Override
+            public void evicted(String key) {
+                //key is messageId|routingKey, routing key of response ends with endpoint name
+                int separator = key.indexOf('|');
+                String[] keyParts = key.substring(separator + 1).split("\\.");
+                if (separator > 0 && keyParts.length > 1) endpointManager.failResponse(key.substring(0, separator), keyParts[1]);
+            }
+        });
+        int workerCount = Math.max(1, config.getInt("receiver.workers", Runtime.getRuntime().availableProcessors()));
+        int queueSize = config.getInt("receiver.queue", 1000);
+        registryWorker = new PartitionWorker("dispatcher-registry", queueSize);
+        registryWorker.start();
+        workers = new PartitionWorker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new PartitionWorker("dispatcher-receiver-" + i, queueSize);
+            workers[i].start();
+        }
+        LOG.info("Receive pipeline started: " + workerCount + " workers, queue " + queueSize);
+    }
+
+    //additional consumers are started only after echo check, so they can't take echo message
+    private void startConsumers() {
+        int consumerCount = endpointManager.getConfig().getInt("receiver.consumers", 1);
+        for (int i = 1; i < consumerCount; i++) {
+            ConsumerThread consumer = new ConsumerThread("dispatcher-consumer-" + i);
+            consumers.add(consumer);
+            consumer.start();
+        }
+    }
+
+    private void stopWorkers() {
+        for (ConsumerThread consumer : consumers) consumer.interrupt();
+        if (registryWorker != null) registryWorker.interrupt();
+        if (workers != null) for (PartitionWorker worker : workers) worker.interrupt();
+    }
 
-                        chunks.put(messageId, chunks.get(messageId) + content);
-                        if (number < count - 1) {
-                            endpointManager.interruptRequestThread(messageId);
-
-                            //notify requester
-                            LOG.debug("Result message id: " + messageId);
-
-                            String replyMessageId = endpointManager.getResponseThread(messageId).getMessageId();
-                            LOG.debug("Origin message id: " + replyMessageId);
-
-                            String reply = endpointManager.getReplyTo(messageId);
-                            TextMessage notifyMessage = session.createTextMessage();
-                            notifyMessage.setStringProperty("messageId", replyMessageId);
-                            notifyMessage.setStringProperty("transactionId", transactionId);
-                            notifyMessage.setSubject(reply);
-                            notifyMessage.setStringProperty("waiting", "true");
-                            LOG.debug("Sending wait notify to ep: " + reply);
-                            sendToEndpointsProducer(notifyMessage, "");
-                            textMessage.acknowledge();
-                            continue;
+    public ChunkAssembler getChunkAssembler() {
+        return chunkAssembler;
+    }
+
+    public int getQueueDepth() {
+        int depth = (registryWorker != null) ? registryWorker.getQueueDepth() : 0;
+        if (workers != null) for (PartitionWorker worker : workers) depth += worker.getQueueDepth();
+        return depth;
+    }
+
+    //all chunks and responses of one message go to the same worker, registry updates are serialized on own worker
+    private void dispatch(TextMessage textMessage) throws JMSException, InterruptedException {
+        String subject = textMessage.getSubject();
+        if (subject == null) return;
+        int dot = subject.indexOf('.');
+        String action = ((dot < 0) ? subject : subject.substring(0, dot)).toLowerCase();
+        if (registryActions.contains(action)) {
+            registryWorker.enqueue(textMessage);
+            return;
+        }
+        String key = textMessage.getStringProperty("messageId");
+        if (key == null) key = textMessage.getStringProperty("transactionId");
+        if (key == null) key = subject;
+        workers[(key.hashCode() & 0x7fffffff) % workers.length].enqueue(textMessage);
+    }
+
+    //only one stage reconnects, others see new connection generation and continue
+    private synchronized void reconnect(int generation) {
+        if (generation != connectionGeneration) return;
+        boolean connected = false;
+        while (!connected) {
+            try {
+                LOG.error("ESB connection lost. Trying to reconnect...");
+                Thread.sleep(2000);
+                connect();
+                connected = true;
+            } catch (JMSException | NamingException e3) {
+                connected = false;
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void processMessage(TextMessage textMessage) throws Exception {
+        LOG.debug("Accepted message " + textMessage);
+        if (textMessage == null || textMessage.getSubject() == null) return;
+        long received = System.currentTimeMillis();
+
+        String content = textMessage.getText();
+        String messageId = textMessage.getStringProperty("messageId");
+        String routingKey = textMessage.getSubject();
+        String uuid = textMessage.getStringProperty("uuid");
+        String transactionId = textMessage.getStringProperty("transactionId");
+        String headers_id = textMessage.getStringProperty("id");
+        String replyTo = textMessage.getReplyTo();
+        LOG.debug("replyTo: " + replyTo);
+        if (transactionId == null) transactionId = "";
+        String[] keyParts = routingKey.split("\\.");
+
+        String action = keyParts[0].toLowerCase();
+        endpointManager.getMetrics().message(action);
+
+        LOG.debug("Action is " + action);
+        if (chunkedActions.contains(action)) {
+            //merge chunks
+            int number = textMessage.getIntProperty("number");
+            int count = textMessage.getIntProperty("count");
+            boolean last = count != ChunkAssembler.MORE && number >= count - 1;
+            if (count > 1 || count == ChunkAssembler.MORE) endpointManager.getMetrics().chunk(content.length());
+            LOG.debug("Data chunk (length: " + content.length() + ") " + number + "/" + count);
+
+            //response to completed request is dropped before assembling, endpoint is alive anyway
+            if (!action.equals("hello")) {
+                InFlightRequest target = endpointManager.getInFlightRequest(messageId);
+                if (target == null || target.isCompleted()) {
+                    LOG.debug("Late response " + routingKey + " for " + messageId + " is dropped");
+                    if (keyParts.length > 1 && last) endpointManager.recordResponse(target, keyParts[1]);
+                    if (keyParts.length > 1) endpointManager.reactivateSystem(keyParts[1]);
+                    textMessage.acknowledge();
+                    return;
+                }
+            }
+
+            //responses of several endpoints share messageId, so chunks are keyed by routing key too
+            ChunkAssembler.Result assembled = chunkAssembler.add(messageId + "|" + routingKey, number, count, content);
+            if (assembled.status == ChunkAssembler.DROPPED || assembled.status == ChunkAssembler.IGNORED) {
+                //dropped response won't come, so endpoint is not waited for anymore
+                if (assembled.status == ChunkAssembler.DROPPED && keyParts.length > 1) endpointManager.failResponse(messageId, keyParts[1]);
+                textMessage.acknowledge();
+                return;
+            }
+            if (assembled.status == ChunkAssembler.PENDING) {
+                //deadline is counted again from accepted chunk
+                endpointManager.extendTimeout(messageId);
+
+                //notify requester
+                LOG.debug("Result message id: " + messageId);
+
+                InFlightRequest inFlightRequest = endpointManager.getInFlightRequest(messageId);
+                if (inFlightRequest == null) return;      //request is already completed
+                String replyMessageId = inFlightRequest.getResponseHandler().getMessageId();
+                LOG.debug("Origin message id: " + replyMessageId);
+
+                String reply = inFlightRequest.getReplyTo();
+                TextMessage notifyMessage = session.createTextMessage();
+                notifyMessage.setStringProperty("messageId", replyMessageId);
+                notifyMessage.setStringProperty("transactionId", transactionId);
+                notifyMessage.setSubject(reply);
+                notifyMessage.setStringProperty("waiting", "true");
+                LOG.debug("Sending wait notify to ep: " + reply);
+                sendToEndpointsProducer(notifyMessage, "");
+                textMessage.acknowledge();
+                return;
+            }
+            content = assembled.content;
+            textMessage.acknowledge();
+        }
+
+        int number = 0;
+        int count = 0;
+        try {
+            number = textMessage.getIntProperty("number");
+            count = textMessage.getIntProperty("count");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        ;
+
+        switch (action) {
+
+            case "hello":
+                if (!activated) return;
+                endpointManager.register(keyParts[1], content);
+                break;
+            //extract metadata from message body announcement
+            case "bye":
+                if (!activated) return;
+                //disable endpoint
+                LOG.info("Receiver: Endpoint " + keyParts[1] + " is disconnected");
+                endpointManager.unregister(keyParts[1]);
+                break;
+            case "pong":
+                if (!activated) return;
+                LOG.info("Receiver: Endpoint " + keyParts[1] + " is confirmed");
+                endpointManager.doPong(keyParts[1]);
+                break;
+            //confirm endpoint
+            case "update":
+            case "remove":
+            case "get":
+                // specify className if need
+                if (action.equalsIgnoreCase("get") && !activated) return;
+                String className = (keyParts.length > 1) ? keyParts[1] : null;
+                String objectUuid = uuid;
+
+                LOG.info("Receiver: Request for '" + keyParts[0] + "' with class " + className + " and uuid " + objectUuid);
+
+                RequestTask th = null;
+
+                int from = endpointManager.getEndpointIndex(replyTo);
+
+                endpointManager.sendAnimation(transactionId, action + "." + className, objectUuid, colors.get(action), "-" + from); //get request
+
+                //update/remove change object (and maybe its specific class), get may be answered from cache
+                if (!action.equals("get")) {
+                    endpointManager.getSpecifyCache().invalidate(objectUuid);
+                    endpointManager.getGetCache().invalidate(objectUuid);
+                    coalescer.invalidate(objectUuid);
+                } else {
+                    String cached = endpointManager.getGetCache().get(objectUuid, className);
+                    if (cached != null) {
+                        LOG.debug("Receiver: Cached object " + className + " uuid: " + objectUuid);
+                        endpointManager.sendAnimation(transactionId, action + "." + className, objectUuid, colors.get(action), "+" + from);
+                        TextMessage getResponse = session.createTextMessage();
+                        getResponse.setStringProperty("transactionId", transactionId);
+                        getResponse.setStringProperty("messageId", messageId);
+                        getResponse.setSubject(replyTo);
+                        sendToEndpointsProducer(getResponse, cached);
+                        trace(transactionId, "get.cached", messageId, null, received);
+                        return;
+                    }
+                }
+
+                String topClass = endpointManager.traverseToAbstract(className);
+                String originClass = className;
+                String oldRoutingKey = routingKey;
+                routingKey = action + "." + topClass;
+
+                switch (action) {
+                    case "update":
+                        LOG.debug("Receiver: Update notification " + className + " uuid: " + objectUuid + " Content: " + content);
+                        th = new RequestTask(transactionId, messageId, uuid, replyTo, routingKey, content, new HashMap<String, String>(), null, number, count);
+                        break;
+
+                    case "remove":
+                        LOG.debug("Receiver: Remove notification " + className + " uuid: " + objectUuid + " Content: " + content);
+                        th = new RequestTask(transactionId, messageId, uuid, replyTo, routingKey, content, new HashMap<String, String>(), null, number, count);
+                        break;
+
+                    case "get":
+                        //add animation for get
+                        RequestCoalescer.Flight flight = startFlight(oldRoutingKey, objectUuid, content, transactionId, messageId, replyTo, count);
+                        if (flight == null) {
+                            trace(transactionId, "get.coalesced", messageId, null, received);
+                            return;
                         }
-                        content = chunks.get(messageId);
-                        chunks.remove(messageId);
-                        textMessage.acknowledge();
+
+                        LOG.debug("Receiver: Requesting class " + className + " uuid: " + objectUuid);
+                        GetResponseHandler getHandler = new GetResponseHandler(transactionId, messageId, className);
+                        completeFlight(flight, getHandler.getCompletion());
+                        th = new RequestTask(transactionId, messageId, uuid, replyTo, routingKey, content, new HashMap<String, String>(), getHandler, number, count);
+                }
+
+                if (th != null) {
+
+                    LOG.debug("Receiver: specify class " + className + " before action " + keyParts[0]);
+
+                    SpecifyTask specifyTask = new SpecifyTask(transactionId, messageId, objectUuid, replyTo, oldRoutingKey, content);
+                    specifyTask.addChainTask(th);
+                    specifyTask.submit();
+                    trace(transactionId, action + ".receive", messageId, null, received);
+                }
+                break;
+
+            case "identify":
+                if (!activated) return;
+                String result = endpointManager.fetchStoredId(keyParts[2], uuid);
+                if (result == null) {
+
+                    String identifierClass = endpointManager.searchNearestIdentification(keyParts[1], keyParts[2]);
+                    if (identifierClass == null) {
+                        LOG.info("Identifier request can't be resolved");
+                        return;
                     }
+                    routingKey = keyParts[0] + "." + identifierClass + "." + keyParts[2];        //get new routing rule
+                    from = endpointManager.getEndpointIndex(replyTo);
+                    endpointManager.sendAnimation(transactionId, routingKey, uuid, colors.get(keyParts[0]), "-" + from);
+                    RequestCoalescer.Flight flight = startFlight(routingKey, uuid, content, transactionId, messageId, replyTo, count);
+                    if (flight == null) return;
+                    LOG.info("Receiver: Identify request for " + keyParts[1] + " " + uuid);
+                    IdentifyResponseHandler identifyHandler = new IdentifyResponseHandler(transactionId, messageId);
+                    completeFlight(flight, identifyHandler.getCompletion());
+                    th = new RequestTask(transactionId, messageId, uuid, replyTo, routingKey, content, new HashMap<String, String>(), identifyHandler, number, count);
+                    th.submit();
+                } else {
+                    TextMessage identifyResponse = session.createTextMessage();
+                    identifyResponse.setStringProperty("messageId", messageId);
+                    identifyResponse.setStringProperty("transactionId", transactionId);
+                    identifyResponse.setSubject(replyTo);
+                    LOG.debug("Data: " + result + " message id: " + messageId);
+                    LOG.debug("Sending to ep: " + identifyResponse);
+                    sendToEndpointsProducer(identifyResponse, result);
+                }
+                break;
+
+            case "unify":
+                if (!activated) return;
+                result = endpointManager.fetchStoredUuid(keyParts[2], headers_id);
+                if (result == null) {
+                    String identifierClass = endpointManager.searchNearestIdentification(keyParts[1], keyParts[2]);
+                    if (identifierClass == null) {
+                        LOG.info("Identifier request can't be resolved");
+                        //todo: send null response
+                        return;
+                    }
+                    routingKey = keyParts[0] + "." + identifierClass + "." + keyParts[2];        //get new routing rule
+
+                    from = endpointManager.getEndpointIndex(replyTo);
+                    endpointManager.sendAnimation(transactionId, routingKey, headers_id, colors.get(keyParts[0]), "-" + from); //get request
+                    RequestCoalescer.Flight flight = startFlight(routingKey, headers_id, content, transactionId, messageId, replyTo, count);
+                    if (flight == null) return;
+                    LOG.info("Receiver: Unify request for " + keyParts[1] + " " + headers_id);
+                    UnifyResponseHandler unifyHandler = new UnifyResponseHandler(transactionId, messageId);
+                    completeFlight(flight, unifyHandler.getCompletion());
+                    th = new RequestTask(transactionId, messageId, headers_id, replyTo, routingKey, content, new HashMap<String, String>(), unifyHandler, number, count);
+                    th.submit();
+                } else {
+                    TextMessage unifyResponse = session.createTextMessage();
+                    unifyResponse.setStringProperty("messageId", messageId);
+                    unifyResponse.setStringProperty("transactionId", transactionId);
+                    unifyResponse.setSubject(replyTo);
+                    LOG.debug("Data: " + result + " message id: " + messageId);
+                    LOG.debug("Sending to ep: " + unifyResponse);
+                    sendToEndpointsProducer(unifyResponse, result);
+                }
+                break;
+            case "specify":
+                if (!activated) return;
+                from = endpointManager.getEndpointIndex(replyTo);
+                endpointManager.sendAnimation(transactionId, routingKey, uuid, colors.get(keyParts[0]), "-" + from); //get request
+                LOG.info("Receiver: Specifying class " + keyParts[1] + " uuid: " + uuid);
+                th = new RequestTask(transactionId, messageId, uuid, replyTo, routingKey, content, new HashMap<String, String>(), new SpecifyResponseHandler(transactionId, messageId, keyParts[1]), number, count);
+                th.submit();
+                break;
+            case "matchall":
+                if (!activated) return;
+                from = endpointManager.getEndpointIndex(replyTo);
+                endpointManager.sendAnimation(transactionId, routingKey, uuid, colors.get(keyParts[0]), "-" + from);  //match request
+                LOG.info("Matching for class " + keyParts[1]);
+                //extract filters
+                Enumeration<String> filters = textMessage.getPropertyNames();
+                HashMap<String, String> filterData = new HashMap<>();
+                while (filters.hasMoreElements()) {
+                    String filterName = filters.nextElement();
+                    if (filterName.startsWith("filter-")) {
+                        String filterCondition = textMessage.getStringProperty(filterName);
+                        filterData.put(filterName, filterCondition);
+                    }
+                }
+                filterData.put("mode", "seek");
+                filterData.put("explain", "false");
+                LOG.debug("Filterdata: " + filterData);
+                int pageSize = intProperty(textMessage, "pageSize", 0);
+                th = new RequestTask(transactionId, messageId, headers_id, replyTo, "match." + keyParts[1], content, filterData, new MatchResponseHandler(transactionId, messageId, pageSize), number, count);
+                th.submit();
+                break;
+
+            case "matchpage":
+                //next page of paged matchall, served from cursor without asking endpoints
+                if (!activated) return;
+                String cursor = textMessage.getStringProperty("cursor");
+                MatchCursors.Page page = matchCursors.page(cursor, intProperty(textMessage, "offset", 0), intProperty(textMessage, "pageSize", 0));
+                TextMessage pageResponse = session.createTextMessage();
+                pageResponse.setStringProperty("transactionId", transactionId);
+                pageResponse.setStringProperty("messageId", messageId);
+                pageResponse.setSubject(replyTo);
+                if (page == null) {
+                    LOG.info("Receiver: Match cursor " + cursor + " is expired");
+                    pageResponse.setStringProperty("cursor", "" + cursor);
+                    pageResponse.setStringProperty("expired", "true");
+                    sendToEndpointsProducer(pageResponse, "");
+                    return;
+                }
+                setPageProperties(pageResponse, cursor, page);
+                sendToEndpointsProducer(pageResponse, page.getContent());
+                break;
+
+            case "check":
+                if (!activated) return;
+                String checkClass = endpointManager.searchNearestCheckpoint(keyParts[1], keyParts[2]);
+                if (checkClass == null) {
+                    LOG.info("Checkpoint for identifier " + keyParts[2] + "@" + keyParts[1] + " not found!");
+                    return;
+                }
+                routingKey = keyParts[0] + "." + checkClass + "." + keyParts[2];        //get new routing rule
+                from = endpointManager.getEndpointIndex(replyTo);
+                endpointManager.sendAnimation(transactionId, routingKey, headers_id, colors.get(keyParts[0]), "-" + from); //get request
+                RequestCoalescer.Flight checkFlight = startFlight(routingKey, headers_id, content, transactionId, messageId, replyTo, count);
+                if (checkFlight == null) return;
+                LOG.info("Receiver: Check request for " + keyParts[1] + " " + headers_id);
+                CheckResponseHandler checkHandler = new CheckResponseHandler(transactionId, messageId);
+                completeFlight(checkFlight, checkHandler.getCompletion());
+                th = new RequestTask(transactionId, messageId, headers_id, replyTo, routingKey, content, new HashMap<String, String>(), checkHandler, number, count);
+                th.submit();
+                break;
+
+            case "got":
+                if (!activated) return;
+                LOG.debug("Receiver: Got response from " + keyParts[1]);
+                endpointManager.reactivateSystem(keyParts[1]);
+                endpointManager.gotResponse(messageId, keyParts[1], content);
+                break;
+            case "unifyresponse":
+                if (!activated) return;
+                LOG.debug("Receiver: Unify response " + keyParts[1]);
+                endpointManager.reactivateSystem(keyParts[1]);
+                endpointManager.gotResponse(messageId, keyParts[1], content);
+                break;
+            case "matchresponse":
+                if (!activated) return;
+                LOG.debug("Receiver: Match response " + keyParts[1]);
+                endpointManager.reactivateSystem(keyParts[1]);
+                endpointManager.gotResponse(messageId, keyParts[1], content);
+                break;
+            case "identifyresponse":
+                if (!activated) return;
+                LOG.debug("Receiver: Identify response " + keyParts[1]);
+                endpointManager.reactivateSystem(keyParts[1]);
+                endpointManager.gotResponse(messageId, keyParts[1], content);
+                break;
+            case "checkresponse":
+                if (!activated) return;
+                LOG.debug("Receiver: Check response: " + keyParts[1]);
+                endpointManager.reactivateSystem(keyParts[1]);
+                endpointManager.gotResponse(messageId, keyParts[1], content);
+                break;
+            case "specifyresponse":
+                if (!activated) return;
+                LOG.debug("Receiver: Specify response from " + keyParts[1]);
+                endpointManager.reactivateSystem(keyParts[1]);
+                endpointManager.gotResponse(messageId, keyParts[1], content);
+                break;
+        }
+    }
+
+    class ConsumerThread extends Thread {
+
+        private int generation = -1;
+        private org.apache.qpid.amqp_1_0.jms.impl.MessageConsumerImpl consumer;
 
-                    int number = 0;
-                    int count = 0;
-                    try {
-                        number = textMessage.getIntProperty("number");
-                        count = textMessage.getIntProperty("count");
-                    } catch (Exception e) {
-                        e.printStackTrace();
+        ConsumerThread(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!endpointManager.isDisconnected()) {
+                int current = connectionGeneration;
+                try {
+                    if (generation != current) {
+                        org.apache.qpid.amqp_1_0.jms.impl.SessionImpl consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                        consumer = consumerSession.createConsumer(dispatcher);
+                        generation = current;
                     }
-                    ;
-
-                    switch (action) {
-
-                        case "hello":
-                            if (!activated) continue;
-                            endpointManager.register(keyParts[1], content);
-                            break;
-                        //extract metadata from message body announcement
-                        case "bye":
-                            if (!activated) continue;
-                            //disable endpoint
-                            LOG.info("Receiver: Endpoint " + keyParts[1] + " is disconnected");
-                            endpointManager.unregister(keyParts[1]);
-                            break;
-                        case "pong":
-                            if (!activated) continue;
-                            LOG.info("Receiver: Endpoint " + keyParts[1] + " is confirmed");
-                            endpointManager.doPong(keyParts[1]);
-                            break;
-                        //confirm endpoint
-                        case "update":
-                        case "remove":
-                        case "get":
-                            // specify className if need
-                            if (action.equalsIgnoreCase("get") && !activated) continue;
-                            String className = (keyParts.length > 1) ? keyParts[1] : null;
-                            String objectUuid = uuid;
-
-                            LOG.info("Receiver: Request for '" + keyParts[0] + "' with class " + className + " and uuid " + objectUuid);
-
-                            RequestThread th = null;
-
-                            int from = endpointManager.getEndpointIndex(replyTo);
-
-                            endpointManager.sendAnimation(transactionId, action + "." + className, objectUuid, colors.get(action), "-" + from); //get request
-
-                            String topClass = endpointManager.traverseToAbstract(className);
-                            String originClass = className;
-                            String oldRoutingKey = routingKey;
-                            routingKey = action + "." + topClass;
-
-                            switch (action) {
-                                case "update":
-                                    LOG.debug("Receiver: Update notification " + className + " uuid: " + objectUuid + " Content: " + content);
-                                    th = new RequestThread(transactionId, messageId, uuid, replyTo, routingKey, content, new HashMap<String, String>(), null, number, count);
-                                    break;
-
-                                case "remove":
-                                    LOG.debug("Receiver: Remove notification " + className + " uuid: " + objectUuid + " Content: " + content);
-                                    th = new RequestThread(transactionId, messageId, uuid, replyTo, routingKey, content, new HashMap<String, String>(), null, number, count);
-                                    break;
-
-                                case "get":
-                                    //add animation for get
-
-                                    LOG.debug("Receiver: Requesting class " + className + " uuid: " + objectUuid);
-                                    th = new RequestThread(transactionId, messageId, uuid, replyTo, routingKey, content, new HashMap<String, String>(), new GetResponseThread(transactionId, messageId, className), number, count);
-                            }
+                    Object message = consumer.receive(50);
+                    if (!(message instanceof TextMessage)) continue;
+                    TextMessage textMessage = (TextMessage) message;
+                    textMessage.acknowledge();
+                    dispatch(textMessage);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (JMSException e) {
+                    reconnect(current);
+                } catch (Exception e) {
+                    LOG.error("Receiver: Error in consumer " + getName() + " " + e.getMessage());
+                }
+            }
+        }
+    }
 
-                            if (th != null) {
+    class PartitionWorker extends Thread {
 
-                                LOG.debug("Receiver: specify class " + className + " before action " + keyParts[0]);
+        private LinkedBlockingQueue<TextMessage> queue;
 
-                                SpecifyThread specifyThread = new SpecifyThread(transactionId, messageId, objectUuid, replyTo, oldRoutingKey, content, new SpecifyResponseThread(transactionId, messageId, className));
-                                specifyThread.addChainThread(th);
-                                specifyThread.start();
-                            }
-                            break;
+        PartitionWorker(String name, int capacity) {
+            super(name);
+            setDaemon(true);
+            queue = new LinkedBlockingQueue<>(capacity);
+        }
 
-                        case "identify":
-                            if (!activated) continue;
-                            String result = endpointManager.fetchStoredId(keyParts[2], uuid);
-                            if (result == null) {
+        //blocks consumer when worker is behind
+        void enqueue(TextMessage textMessage) throws InterruptedException {
+            queue.put(textMessage);
+        }
 
-                                String identifierClass = endpointManager.searchNearestIdentification(keyParts[1], keyParts[2]);
-                                if (identifierClass == null) {
-                                    LOG.info("Identifier request can't be resolved");
-                                    continue;
-                                }
-                                routingKey = keyParts[0] + "." + identifierClass + "." + keyParts[2];        //get new routing rule
-                                from = endpointManager.getEndpointIndex(replyTo);
-                                endpointManager.sendAnimation(transactionId, routingKey, uuid, colors.get(keyParts[0]), "-" + from);
-                                LOG.info("Receiver: Identify request for " + keyParts[1] + " " + uuid);
-                                th = new RequestThread(transactionId, messageId, uuid, replyTo, routingKey, content, new HashMap<String, String>(), new IdentifyResponseThread(transactionId, messageId), number, count);
-                                th.start();
-                            } else {
-                                TextMessage identifyResponse = session.createTextMessage();
-                                identifyResponse.setStringProperty("messageId", messageId);
-                                identifyResponse.setStringProperty("transactionId", transactionId);
-                                identifyResponse.setSubject(endpointManager.getReplyTo(messageId));
-                                LOG.debug("Data: " + result + " message id: " + messageId);
-                                LOG.debug("Sending to ep: " + identifyResponse);
-                                sendToEndpointsProducer(identifyResponse, result);
-                            }
-                            break;
-
-                        case "unify":
-                            if (!activated) continue;
-                            result = endpointManager.fetchStoredUuid(keyParts[2], headers_id);
-                            if (result == null) {
-                                String identifierClass = endpointManager.searchNearestIdentification(keyParts[1], keyParts[2]);
-                                if (identifierClass == null) {
-                                    LOG.info("Identifier request can't be resolved");
-                                    //todo: send null response
-                                    continue;
-                                }
-                                routingKey = keyParts[0] + "." + identifierClass + "." + keyParts[2];        //get new routing rule
-
-                                from = endpointManager.getEndpointIndex(replyTo);
-                                endpointManager.sendAnimation(transactionId, routingKey, headers_id, colors.get(keyParts[0]), "-" + from); //get request
-                                LOG.info("Receiver: Unify request for " + keyParts[1] + " " + headers_id);
-                                th = new RequestThread(transactionId, messageId, headers_id, replyTo, routingKey, content, new HashMap<String, String>(), new UnifyResponseThread(transactionId, messageId), number, count);
-                                th.start();
-                            } else {
-                                TextMessage unifyResponse = session.createTextMessage();
-                                unifyResponse.setStringProperty("messageId", messageId);
-                                unifyResponse.setStringProperty("transactionId", transactionId);
-                                unifyResponse.setSubject(endpointManager.getReplyTo(messageId));
-                                LOG.debug("Data: " + result + " message id: " + messageId);
-                                LOG.debug("Sending to ep: " + unifyResponse);
-                                sendToEndpointsProducer(unifyResponse, result);
-                            }
-                            break;
-                        case "specify":
-                            if (!activated) continue;
-                            from = endpointManager.getEndpointIndex(replyTo);
-                            endpointManager.sendAnimation(transactionId, routingKey, uuid, colors.get(keyParts[0]), "-" + from); //get request
-                            LOG.info("Receiver: Specifying class " + keyParts[1] + " uuid: " + uuid);
-                            th = new RequestThread(transactionId, messageId, uuid, replyTo, routingKey, content, new HashMap<String, String>(), new SpecifyResponseThread(transactionId, messageId, keyParts[1]), number, count);
-                            th.start();
-                            break;
-                        case "matchall":
-                            if (!activated) continue;
-                            from = endpointManager.getEndpointIndex(replyTo);
-                            endpointManager.sendAnimation(transactionId, routingKey, uuid, colors.get(keyParts[0]), "-" + from);  //match request
-                            LOG.info("Matching for class " + keyParts[1]);
-                            //extract filters
-                            Enumeration<String> filters = textMessage.getPropertyNames();
-                            HashMap<String, String> filterData = new HashMap<>();
-                            while (filters.hasMoreElements()) {
-                                String filterName = filters.nextElement();
-                                if (filterName.startsWith("filter-")) {
-                                    String filterCondition = textMessage.getStringProperty(filterName);
-                                    filterData.put(filterName, filterCondition);
-                                }
-                            }
-                            filterData.put("mode", "seek");
-                            filterData.put("explain", "false");
-                            LOG.debug("Filterdata: " + filterData);
-                            th = new RequestThread(transactionId, messageId, headers_id, replyTo, "match." + keyParts[1], content, filterData, new MatchResponseThread(transactionId, messageId), number, count);
-                            th.start();
-                            break;
-
-                        case "check":
-                            if (!activated) continue;
-                            String checkClass = endpointManager.searchNearestCheckpoint(keyParts[1], keyParts[2]);
-                            if (checkClass == null) {
-                                LOG.info("Checkpoint for identifier " + keyParts[2] + "@" + keyParts[1] + " not found!");
-                                continue;
-                            }
-                            routingKey = keyParts[0] + "." + checkClass + "." + keyParts[2];        //get new routing rule
-                            from = endpointManager.getEndpointIndex(replyTo);
-                            endpointManager.sendAnimation(transactionId, routingKey, headers_id, colors.get(keyParts[0]), "-" + from); //get request
-                            LOG.info("Receiver: Check request for " + keyParts[1] + " " + headers_id);
-                            th = new RequestThread(transactionId, messageId, headers_id, replyTo, routingKey, content, new HashMap<String, String>(), new CheckResponseThread(transactionId, messageId), number, count);
-                            th.start();
-                            break;
-
-                        case "got":
-                            if (!activated) continue;
-                            LOG.debug("Receiver: Got response from " + keyParts[1]);
-                            endpointManager.reactivateSystem(keyParts[1]);
-                            endpointManager.gotResponse(messageId, keyParts[1], content);
-                            break;
-                        case "unifyresponse":
-                            if (!activated) continue;
-                            LOG.debug("Receiver: Unify response " + keyParts[1]);
-                            endpointManager.reactivateSystem(keyParts[1]);
-                            endpointManager.gotResponse(messageId, keyParts[1], content);
-                            break;
-                        case "matchresponse":
-                            if (!activated) continue;
-                            LOG.debug("Receiver: Match response " + keyParts[1]);
-                            endpointManager.reactivateSystem(keyParts[1]);
-                            endpointManager.gotResponse(messageId, keyParts[1], content);
-                            break;
-                        case "identifyresponse":
-                            if (!activated) continue;
-                            LOG.debug("Receiver: Identify response " + keyParts[1]);
-                            endpointManager.reactivateSystem(keyParts[1]);
-                            endpointManager.gotResponse(messageId, keyParts[1], content);
-                            break;
-                        case "checkresponse":
-                            if (!activated) continue;
-                            LOG.debug("Receiver: Check response: " + keyParts[1]);
-                            endpointManager.reactivateSystem(keyParts[1]);
-                            endpointManager.gotResponse(messageId, keyParts[1], content);
-                            break;
-                        case "specifyresponse":
-                            if (!activated) continue;
-                            LOG.debug("Receiver: Specify response from " + keyParts[1]);
-                            endpointManager.reactivateSystem(keyParts[1]);
-                            endpointManager.gotResponse(messageId, keyParts[1], content);
-                            break;
-                    }
+        int getQueueDepth() {
+            return queue.size();
+        }
+
+        @Override
+        public void run() {
+            while (!endpointManager.isDisconnected()) {
+                TextMessage textMessage;
+                try {
+                    textMessage = queue.poll(200, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (textMessage == null) continue;
+                int generation = connectionGeneration;
+                try {
+                    processMessage(textMessage);
                 } catch (javax.jms.IllegalStateException e) {
                     LOG.error("ESB disconnected. Closing!");
                     endpointManager.disconnect();
                 } catch (JMSException e2) {
-                    boolean connected = false;
-                    while (!connected) {
-                        try {
-                            LOG.error("ESB connection lost. Trying to reconnect...");
-                            Thread.sleep(2000);
-                            connect();
-                            connected = true;
-                        } catch (JMSException e3) {
-                            connected = false;
-                        }
-                    }
+                    reconnect(generation);
                 } catch (Exception e) {
                     LOG.error("Receiver: Error in message loop " + e.getMessage());
                     e.printStackTrace();
                 }
             }
-
-        } catch (Exception e) {
-            LOG.error("Error in receiver initialization " + e.getMessage());
         }
-        LOG.info("Leaving receiver thread");
     }
 
-    class MatchResponseThread extends ResponseThread {
-        public MatchResponseThread(String transactionId, String messageId) {
+    class MatchResponseHandler extends ResponseHandler {
+        private final MatchIntersection intersection = new MatchIntersection();
+        private final int pageSize;
+
+        //pageSize > 0: result is kept by cursor and sent by pages
+        public MatchResponseHandler(String transactionId, String messageId, int pageSize) {
             super(transactionId, messageId);
+            this.pageSize = pageSize;
         }
 
+        //uuid lists are intersected as they come, result is ready when last endpoint answers
+        @Override
+        protected void onResponse(String endpointName, String content) {
+            intersection.add(content);
+        }
 
-        public void run() {
-            HashMap<String, String> headers = endpointManager.getHeaders(messageId);
+        protected String handle() throws JMSException {
+            HashMap<String, String> headers = request.getHeaders();
             boolean explainMode = ("" + headers.get("explain")).equalsIgnoreCase("true");
             if (!explainMode) {
                 //response animation
-                endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("match"), endpointManager.getResponseAnimation(messageId));
-                endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("match"), "+" + endpointManager.getEndpointIndex(endpointManager.getReplyTo(messageId)));
+                endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("match"), endpointManager.getResponseAnimation(request));
+                endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("match"), "+" + endpointManager.getEndpointIndex(request.getReplyTo()));
                 LOG.debug("Merge responses accepted");
-                ArrayList<String> responses = endpointManager.getAllResponses(messageId);
-                //todo: merge responses
-                List<List<String>> allResponses = new ArrayList<>();
-                List<String> result = new ArrayList<>();
-                for (String response : responses) {
-                    if (response == null) response = "";
-                    String[] splittedResponse = response.split(",");
-                    List<String> al = Arrays.asList(splittedResponse);
-                    allResponses.add(al);
-                }
-                if (allResponses.size() > 0) {
-                    List<String> t = allResponses.get(0);
-                    for (String ent : t) {
-                        boolean matchAll = true;
-                        for (int i = 1; i < allResponses.size(); i++)
-                            if (!allResponses.get(i).contains(ent)) {
-                                matchAll = false;
-                                break;
-                            }
-                        if (matchAll) result.add(ent);
-                    }
-                }
-                String resultString = joinStrings(",", result.toArray(new String[0]));
-                try {
-                    TextMessage matchResponse = session.createTextMessage();
-                    matchResponse.setStringProperty("transactionId", transactionId);
-                    matchResponse.setStringProperty("messageId", messageId);
-                    matchResponse.setSubject(endpointManager.getReplyTo(messageId));
-                    LOG.debug("Match response message: " + matchResponse + "; " + matchResponse.getText() + "|" + matchResponse.getStringProperty("messageId") + "|" + matchResponse.getSubject());
-                    endpointManager.interruptRequestThread(messageId);
-                    endpointManager.cleanupResponse(messageId);
-                    LOG.debug("Sending to ep: " + matchResponse);
-                    sendToEndpointsProducer(matchResponse, resultString.toString());
-                } catch (JMSException e) {
-                    e.printStackTrace();
+                String resultString = intersection.getResult();
+                TextMessage matchResponse = session.createTextMessage();
+                matchResponse.setStringProperty("transactionId", transactionId);
+                matchResponse.setStringProperty("messageId", messageId);
+                matchResponse.setSubject(request.getReplyTo());
+                String content = resultString;
+                if (pageSize > 0) {
+                    String cursor = matchCursors.open(resultString);
+                    MatchCursors.Page page = matchCursors.page(cursor, 0, pageSize);
+                    setPageProperties(matchResponse, cursor, page);
+                    content = page.getContent();
                 }
+                LOG.debug("Match response message: " + matchResponse + "; " + matchResponse.getText() + "|" + matchResponse.getStringProperty("messageId") + "|" + matchResponse.getSubject());
+                LOG.debug("Sending to ep: " + matchResponse);
+                sendToEndpointsProducer(matchResponse, content);
+                return resultString;
             } else {
                 // ... explain mode, compare data ...
+                return null;
             }
         }
     }
 
-    class GetResponseThread extends ResponseThread {
+    class GetResponseHandler extends ResponseHandler {
         private final String className;
+        private final long cacheGeneration;
 
-        public GetResponseThread(String transactionId, String messageId, String originalClassName) {
+        public GetResponseHandler(String transactionId, String messageId, String originalClassName) {
             super(transactionId, messageId);
             this.className = originalClassName;
+            this.cacheGeneration = endpointManager.getGetCache().getGeneration();
         }
 
-        public void run() {
+        protected String handle() {
             //response animation
-            endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("get"), endpointManager.getResponseAnimation(messageId));
-            endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("get"), "+" + endpointManager.getEndpointIndex(endpointManager.getReplyTo(messageId)));
+            endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("get"), endpointManager.getResponseAnimation(request));
+            endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("get"), "+" + endpointManager.getEndpointIndex(request.getReplyTo()));
             LOG.debug("Wow! XML is built");
-            ArrayList<String> responses = endpointManager.getAllResponses(messageId);
+            ArrayList<String> responses = request.getResponses();
 
             for (String response : responses) {
                 LOG.debug("Response: " + response);
             }
             try {
                 ResponseMerger responseMerger = new ResponseMerger(responses);
-                Document result = responseMerger.getResponseXML(this.className);
-                TransformerFactory transformerFactory = TransformerFactory.newInstance();
-                Transformer transformer = transformerFactory.newTransformer();
-                StringWriter resultString = new StringWriter();
-                transformer.transform(new DOMSource(result), new StreamResult(resultString));
+                String resultString = responseMerger.getResponseXML(this.className);
                 LOG.debug("Merged response: " + resultString);
+                //partial object (some endpoints didn't answer) is not cached
+                if (request.getWaitingEndpoints().isEmpty()) {
+                    endpointManager.getGetCache().put(request.getIdentifier(), className, resultString, cacheGeneration);
+                }
                 TextMessage getResponse = session.createTextMessage();
                 getResponse.setStringProperty("transactionId", transactionId);
                 getResponse.setStringProperty("messageId", messageId);
-                getResponse.setSubject(endpointManager.getReplyTo(messageId));
+                getResponse.setSubject(request.getReplyTo());
                 LOG.debug("Get response message: " + getResponse + "; " + getResponse.getText() + "|" + getResponse.getStringProperty("messageId") + "|" + getResponse.getSubject());
-                endpointManager.interruptRequestThread(messageId);
-                endpointManager.cleanupResponse(messageId);
                 LOG.debug("Sending to ep: " + getResponse);
-                sendToEndpointsProducer(getResponse, resultString.toString());
+                sendToEndpointsProducer(getResponse, resultString);
+                return resultString;
             } catch (Exception e) {
                 LOG.error("Error when sending response");
             }
+            return null;
         }
     }
 
-    class UnifyResponseThread extends ResponseThread {
+    class UnifyResponseHandler extends ResponseHandler {
 
-        public UnifyResponseThread(String transactionId, String messageId) {
+        public UnifyResponseHandler(String transactionId, String messageId) {
             super(transactionId, messageId);
         }
 
-        public void run() {
+        protected String handle() {
             //response animation
             try {
-                LOG.debug("Unify response thread activated");
-                endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("unify"), endpointManager.getResponseAnimation(messageId));
-                endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("unify"), "+" + endpointManager.getEndpointIndex(endpointManager.getReplyTo(messageId)));
+                LOG.debug("Unify response handler activated");
+                endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("unify"), endpointManager.getResponseAnimation(request));
+                endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("unify"), "+" + endpointManager.getEndpointIndex(request.getReplyTo()));
                 LOG.debug("Sendanim");
-                ArrayList<String> responses = endpointManager.getAllResponses(messageId);
+                ArrayList<String> responses = request.getResponses();
                 //check for nonuniqueness
                 String response = "";
                 for (int i = 0; i < responses.size(); i++) {
@@ -683,31 +966,32 @@ public class ReceiverThread extends Thread {
                 TextMessage unifyResponse = session.createTextMessage();
                 unifyResponse.setStringProperty("messageId", messageId);
                 unifyResponse.setStringProperty("transactionId", transactionId);
-                unifyResponse.setSubject(endpointManager.getReplyTo(messageId));
-                endpointManager.interruptRequestThread(messageId);
+                unifyResponse.setSubject(request.getReplyTo());
+                endpointManager.cancelTimeout(messageId);
                 LOG.debug("presync");
                 sendToEndpointsProducer(unifyResponse, response);
-                endpointManager.cleanupResponse(messageId);
                 LOG.debug("Response sent");
+                return response;
 
             } catch (Exception e) {
                 LOG.error("Error when sending unify response");
             }
+            return null;
         }
     }
 
 
-    class IdentifyResponseThread extends ResponseThread {
+    class IdentifyResponseHandler extends ResponseHandler {
 
-        public IdentifyResponseThread(String transactionId, String messageId) {
+        public IdentifyResponseHandler(String transactionId, String messageId) {
             super(transactionId, messageId);
         }
 
-        public void run() {
+        protected String handle() {
             //response animation
             try {
-                String identifyReplyTo = endpointManager.getReplyTo(messageId);
-                ArrayList<String> responses = endpointManager.getAllResponses(messageId);
+                String identifyReplyTo = request.getReplyTo();
+                ArrayList<String> responses = request.getResponses();
                 String responseString = "";
                 for (int i = 0; i < responses.size(); i++) {
                     if (responses.get(i).trim().length() != 0) {
@@ -716,47 +1000,46 @@ public class ReceiverThread extends Thread {
                     }
                 }
 
-                endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("identify"), endpointManager.getResponseAnimation(messageId));
+                endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("identify"), endpointManager.getResponseAnimation(request));
                 if (identifyReplyTo != null) {
 
-                    endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("identify"), "+" + endpointManager.getEndpointIndex(endpointManager.getReplyTo(messageId)));
-                    LOG.debug("Sending identify response to requester " + endpointManager.getReplyTo(messageId));
+                    endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("identify"), "+" + endpointManager.getEndpointIndex(request.getReplyTo()));
+                    LOG.debug("Sending identify response to requester " + request.getReplyTo());
 
                     //check for nonuniqueness
                     TextMessage identifyResponse = session.createTextMessage();
                     identifyResponse.setStringProperty("messageId", messageId);
                     identifyResponse.setStringProperty("transactionId", transactionId);
-                    identifyResponse.setSubject(endpointManager.getReplyTo(messageId));
+                    identifyResponse.setSubject(request.getReplyTo());
                     LOG.debug("Data: " + responseString + " message id: " + messageId);
-                    endpointManager.interruptRequestThread(messageId);
-                    endpointManager.cleanupResponse(messageId);
                     LOG.debug("Sending to ep: " + identifyResponse);
                     sendToEndpointsProducer(identifyResponse, responseString);
                 } else {
                     LOG.debug("Receiver: Got identify response " + responseString + " and proceed to next action");
-                    endpointManager.setResponse(messageId, responseString);
-                    endpointManager.interruptRequestThread(messageId);
-                    endpointManager.cleanupResponse(messageId);
                 }
+                return responseString;
 
             } catch (Exception e) {
                 LOG.error("Error when sending identify response " + e.getMessage());
             }
+            return null;
         }
     }
 
-    class SpecifyResponseThread extends ResponseThread {
+    class SpecifyResponseHandler extends ResponseHandler {
         private final String defaultValue;
+        private final long cacheGeneration;
 
-        public SpecifyResponseThread(String transactionId, String messageId, String defaultValue) {
+        public SpecifyResponseHandler(String transactionId, String messageId, String defaultValue) {
             super(transactionId, messageId);
             this.defaultValue = defaultValue;
+            this.cacheGeneration = endpointManager.getSpecifyCache().getGeneration();
         }
 
-        public void run() {
+        protected String handle() {
             try {
                 //response animation
-                ArrayList<String> responses = endpointManager.getAllResponses(messageId);
+                ArrayList<String> responses = request.getResponses();
                 LOG.debug("Receiver: Specify responses " + responses);
                 //get an unique collection
 
@@ -772,12 +1055,16 @@ public class ReceiverThread extends Thread {
                 }
                 //todo: reorder by ACL priorities
                 if (specifications.size() > 0) responseString = endpointManager.join(specifications, ",");
+                //result is cached only when all specifiable endpoints answered
+                if (request.getWaitingEndpoints().isEmpty()) {
+                    endpointManager.getSpecifyCache().put(request.getIdentifier(), defaultValue, responseString, cacheGeneration);
+                }
 
-                String specifyReplyTo = endpointManager.getReplyTo(messageId);
+                String specifyReplyTo = request.getReplyTo();
                 if (specifyReplyTo != null) {
 
-                    endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("specify"), endpointManager.getResponseAnimation(messageId));
-                    endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("specify"), "+" + endpointManager.getEndpointIndex(endpointManager.getReplyTo(messageId)));
+                    endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("specify"), endpointManager.getResponseAnimation(request));
+                    endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("specify"), "+" + endpointManager.getEndpointIndex(request.getReplyTo()));
 
                     LOG.debug("Receiver: Got specify response " + responseString + " and send it to endpoint " + specifyReplyTo);
 
@@ -785,62 +1072,62 @@ public class ReceiverThread extends Thread {
                     specifyResponse.setStringProperty("messageId", messageId);
                     specifyResponse.setStringProperty("transactionId", transactionId);
                     specifyResponse.setSubject(specifyReplyTo);
-                    endpointManager.interruptRequestThread(messageId);
-                    endpointManager.cleanupResponse(messageId);
                     LOG.debug("Sending to ep: " + specifyResponse);
                     sendToEndpointsProducer(specifyResponse, responseString);
                 } else {
                     LOG.debug("Receiver: Got specify response " + responseString + " and proceed to next action");
-                    endpointManager.interruptRequestThread(messageId);
-                    endpointManager.cleanupResponse(messageId);
-                    endpointManager.setResponse(messageId, responseString);
                 }
+                return responseString;
 
             } catch (Exception e) {
                 LOG.error("Error when sending specify response " + e.getMessage());
             }
+            return null;
         }
     }
 
-    class CheckResponseThread extends ResponseThread {
+    class CheckResponseHandler extends ResponseHandler {
 
-        public CheckResponseThread(String transactionId, String messageId) {
+        public CheckResponseHandler(String transactionId, String messageId) {
             super(transactionId, messageId);
         }
 
-        public void run() {
+        protected String handle() {
             try {
                 //response animation
-                endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("check"), endpointManager.getResponseAnimation(messageId));
-                endpointManager.sendAnimation(transactionId, endpointManager.getRequestCommonAction(messageId), endpointManager.getRequestIdentifier(messageId), colors.get("check"), "+" + endpointManager.getEndpointIndex(endpointManager.getReplyTo(messageId)));
-                ArrayList<String> responses = endpointManager.getAllResponses(messageId);
-                String response = "false";
+                endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("check"), endpointManager.getResponseAnimation(request));
+                endpointManager.sendAnimation(transactionId, request.getCommonAction(), request.getIdentifier(), colors.get("check"), "+" + endpointManager.getEndpointIndex(request.getReplyTo()));
+                ArrayList<String> responses = request.getResponses();
+                //identifier is known when any endpoint confirms it
+                String result = "false";
                 for (int i = 0; i < responses.size(); i++) {
-                    if (responses.get(i).trim().length() != 0) {
-                        response = responses.get(i);
+                    String response = responses.get(i).trim();
+                    if (response.equalsIgnoreCase("true") || response.equalsIgnoreCase("1")) {
+                        result = "true";
                         break;
                     }
                 }
-                String result = "false";
-                if (response.equalsIgnoreCase("true") || response.equalsIgnoreCase("1"))
-                    result = "true";
                 TextMessage checkResponse = session.createTextMessage();
                 checkResponse.setStringProperty("messageId", messageId);
                 checkResponse.setStringProperty("transactionId", transactionId);
-                checkResponse.setSubject(endpointManager.getReplyTo(messageId));
-                endpointManager.interruptRequestThread(messageId);
-                endpointManager.cleanupResponse(messageId);
+                checkResponse.setSubject(request.getReplyTo());
                 LOG.debug("Sending to ep: " + checkResponse);
                 sendToEndpointsProducer(checkResponse, result);
+                return result;
 
             } catch (Exception e) {
                 LOG.error("Error when sending check response " + e.getMessage());
             }
+            return null;
         }
 
     }
 
-    class RequestThread extends Thread {
+    /**
+     * Request stage: registers request in endpoint manager, sends it to endpoints and arms the response timeout.
+     * Completion is fulfilled by the response handler (or immediately for requests without responses).
+     */
+    class RequestTask implements ExecutionEngine.Rejectable {
 
         protected String identifierName;
         protected String identifier;
@@ -851,18 +1138,18 @@ public class ReceiverThread extends Thread {
         protected String routingKey;
         protected String className;
         protected String content;
-        protected ResponseThread responseThread;
+        protected ResponseHandler responseHandler;
         protected HashMap<String, String> headers;
         protected String overridedClasses = null;
         protected int number;
         protected int count;
-
-        protected ArrayList<RequestThread> chainThreads = new ArrayList<>();
+        protected CompletableFuture<String> completion;
+        protected long submitted;
 
         protected String originalRoutingKey;
         protected String originalClassName;
 
-        public RequestThread(String transactionId, String messageId, String identifier, String replyTo, String routingKey, String content, HashMap<String, String> headers, ResponseThread responseThread, int number, int count) {
+        public RequestTask(String transactionId, String messageId, String identifier, String replyTo, String routingKey, String content, HashMap<String, String> headers, ResponseHandler responseHandler, int number, int count) {
             this.identifier = identifier;
             this.messageId = messageId;
             this.transactionId = transactionId;
@@ -874,18 +1161,28 @@ public class ReceiverThread extends Thread {
             this.className = keySplitted[1];
             this.content = content;
             this.headers = headers;
-            this.responseThread = responseThread;
+            this.responseHandler = responseHandler;
             this.number = number;
             this.count = count;
-            LOG.debug(action + " Thread initialized");
+            this.completion = (responseHandler != null) ? responseHandler.getCompletion() : new CompletableFuture<String>();
+            LOG.debug(action + " Task initialized");
+        }
+
+        public CompletableFuture<String> submit() {
+            submitted = System.currentTimeMillis();
+            endpointManager.getEngine().execute(this);
+            return completion;
         }
 
         @Override
         public void run() {
+            final long started = System.currentTimeMillis();
+            action = action.toLowerCase();
+            trace(transactionId, action + ".queue", messageId, null, submitted);
             try {
-                LOG.debug("Run thread for " + action + ", " + className + ", " + identifier + " (replyTo: " + replyTo + ", messageId: " + messageId + ", routingKey:" + routingKey + " # (" + number + "/" + count + ")");
+                LOG.debug("Run task for " + action + ", " + className + ", " + identifier + " (replyTo: " + replyTo + ", messageId: " + messageId + ", routingKey:" + routingKey + " # (" + number + "/" + count + ")");
 
-                TextMessage request = session.createTextMessage();
+                final TextMessage request = session.createTextMessage();
                 request.setStringProperty("messageId", messageId);
                 request.setStringProperty("transactionId", transactionId);
                 request.setIntProperty("number", number);
@@ -902,35 +1199,34 @@ public class ReceiverThread extends Thread {
                 LOG.debug("TransactionID: " + transactionId);
                 LOG.debug("MessageID: " + messageId);
                 LOG.debug("Identifier: " + identifier);
-                LOG.debug("Thread: " + responseThread);
+                LOG.debug("Handler: " + responseHandler);
                 request.setText(content);
 
                 request.setSubject(routingKey);
-                action = action.toLowerCase();
                 switch (action) {
                     case "get":
-                        endpointManager.addGetRequest(routingKey, messageId, className, identifier, replyTo, this, responseThread);
+                        endpointManager.addGetRequest(routingKey, messageId, className, identifier, replyTo, responseHandler);
                         endpointManager.sendAnimation(transactionId, action + "." + className, identifier, colors.get(action), endpointManager.getAnimationToEndpointIndexes(messageId));
                         break;
 
                     case "specify":
-                        endpointManager.addSpecifyRequest(routingKey, messageId, className, identifier, replyTo, this, responseThread);
+                        endpointManager.addSpecifyRequest(routingKey, messageId, className, identifier, replyTo, responseHandler);
                         endpointManager.sendAnimation(transactionId, action + "." + className, identifier, colors.get(action), endpointManager.getAnimationToEndpointIndexes(messageId));
                         break;
 
                     case "check":
-                        endpointManager.addCheckRequest(routingKey, messageId, className, identifierName, identifier, replyTo, this, responseThread);
+                        endpointManager.addCheckRequest(routingKey, messageId, className, identifierName, identifier, replyTo, responseHandler);
                         endpointManager.sendAnimation(transactionId, action + "." + className, identifier, colors.get(action), endpointManager.getAnimationToEndpointIndexes(messageId));
                         break;
 
                     case "match":
-                        endpointManager.addMatchRequest(routingKey, messageId, className, replyTo, this, headers, responseThread);
+                        endpointManager.addMatchRequest(routingKey, messageId, className, replyTo, headers, responseHandler);
                         endpointManager.sendAnimation(transactionId, action + "." + className, identifier, colors.get(action), endpointManager.getAnimationToEndpointIndexes(messageId));
                         break;
 
                     case "identify":
                     case "unify":
-                        endpointManager.addIdentifierRequest(routingKey, messageId, className, identifierName, identifier, replyTo, this, responseThread);
+                        endpointManager.addIdentifierRequest(routingKey, messageId, className, identifierName, identifier, replyTo, responseHandler);
                         endpointManager.sendAnimation(transactionId, action + "." + className + "." + identifierName, identifier, colors.get(action), endpointManager.getAnimationToEndpointIndexes(messageId));
                         break;
 
@@ -938,44 +1234,74 @@ public class ReceiverThread extends Thread {
                         endpointManager.sendAnimation(transactionId, action + "." + className, identifier, colors.get(action), endpointManager.getAnimationToUpdateEndpoints(className));
                         LOG.debug("Updating chunk: " + number + " from " + count);
                         sendToProducer(request);
+                        if (number >= count - 1) endpointManager.logUpdate(action, className);
+                        trace(transactionId, action + ".send", messageId, null, started);
+                        completion.complete(null);
                         return;
 
                     case "remove":
                         //get all IDs!
                         String getIdsReplyTo = null;
 
+                        //all identifiers are requested at once, each request has own timeout
+                        final ConcurrentHashMap<String, String> harvested = new ConcurrentHashMap<>();
                         ArrayList<String> as = endpointManager.getIdentifierRequests(className);
-                        for (String identifierName : as) {
-                            String getIdsMessageId = UUID.randomUUID().toString();
-                            String getIdsRoutingKey = "identify." + identifierName;
-                            Thread th = new RequestThread(transactionId, getIdsMessageId, identifier, getIdsReplyTo, getIdsRoutingKey, content, new HashMap<String, String>(), new IdentifyResponseThread(transactionId, getIdsMessageId), number, count);
-                            th.start();
-                            th.join();
-
-                            String identifierValue = endpointManager.getResponse(getIdsMessageId);
-                            if (identifierValue != null) {
-                                LOG.debug("Found value for identifier " + identifierName + " is " + identifierValue);
-                                //store identifier to database!!!!
-                                endpointManager.storeIdentifier(identifier, identifierName, identifierValue);
-                            }
+                        CompletableFuture<?>[] harvest = new CompletableFuture<?>[as.size()];
+                        for (int i = 0; i < as.size(); i++) {
+                            final String identifierName = as.get(i);
+                            final String getIdsMessageId = UUID.randomUUID().toString();
+                            final String getIdsRoutingKey = "identify." + identifierName;
+                            RequestTask getIdsTask = new RequestTask(transactionId, getIdsMessageId, identifier, getIdsReplyTo, getIdsRoutingKey, content, new HashMap<String, String>(), new IdentifyResponseHandler(transactionId, getIdsMessageId), number, count);
+                            harvest[i] = getIdsTask.submit().handle((identifierValue, error) -> {
+                                if (identifierValue != null) {
+                                    LOG.debug("Found value for identifier " + identifierName + " is " + identifierValue);
+                                    harvested.put(identifierName, identifierValue);
+                                }
+                                return null;
+                            });
                         }
-                        endpointManager.sendAnimation(transactionId, action + "." + className, identifier, colors.get(action), endpointManager.getAnimationToUpdateEndpoints(className));
-                        sendToProducer(request);
+                        //remove is sent once: when all identifiers are harvested or with those collected till remove timeout
+                        final AtomicBoolean sent = new AtomicBoolean();
+                        final Runnable send = () -> {
+                            if (!sent.compareAndSet(false, true)) return;
+                            try {
+                                //store identifiers to database
+                                endpointManager.storeIdentifiers(identifier, harvested);
+                                endpointManager.sendAnimation(transactionId, action + "." + className, identifier, colors.get(action), endpointManager.getAnimationToUpdateEndpoints(className));
+                                sendToProducer(request);
+                                endpointManager.logUpdate(action, className);
+                                trace(transactionId, action + ".send", messageId, null, started);
+                            } finally {
+                                completion.complete(null);
+                            }
+                        };
+                        final TimeoutWheel.Timeout deadline = endpointManager.schedule(send, endpointManager.getActionTimeout(action));
+                        CompletableFuture.allOf(harvest).thenRun(() -> {
+                            deadline.cancel();
+                            send.run();
+                        });
                         return;
                 }
 
+                endpointManager.scheduleTimeout(messageId, action);
                 sendToProducer(request);
-                Thread.sleep(3000);
-                endpointManager.timeoutResponse(messageId);
-                LOG.error(action + " response timeout");
+                trace(transactionId, action + ".send", messageId, null, started);
 
             } catch (JMSException e) {
                 e.printStackTrace();
-            } catch (InterruptedException e) {
-                LOG.debug("Response arrived");
+                completion.complete(null);
+            } catch (Exception e) {
+                LOG.error("Error when running task for " + action + " (messageId: " + messageId + "): " + e.getMessage());
+                e.printStackTrace();
+                completion.complete(null);
             }
         }
 
+        @Override
+        public void rejected() {
+            completion.complete(null);
+        }
+
         public void setRequestClassName(String classNames) {
             String[] splitted = classNames.split(",");
             ArrayList<String> result = new ArrayList<>();
@@ -986,50 +1312,72 @@ public class ReceiverThread extends Thread {
         }
     }
 
-    class SpecifyThread extends RequestThread {
+    /**
+     * Resolves specific class of object (if class is extendable) and then submits the chained requests
+     */
+    class SpecifyTask extends RequestTask {
+
+        protected ArrayList<RequestTask> chainTasks = new ArrayList<>();
 
-        public SpecifyThread(String transactionId, String messageId, String identifier, String replyTo, String routingKey, String content, ResponseThread responseThread) {
-            super(transactionId, messageId, identifier, replyTo, routingKey, content, new HashMap<String, String>(), responseThread, 0, 0);
+        public SpecifyTask(String transactionId, String messageId, String identifier, String replyTo, String routingKey, String content) {
+            super(transactionId, messageId, identifier, replyTo, routingKey, content, new HashMap<String, String>(), null, 0, 0);
         }
 
         public void run() {
+            try {
+                runSpecify();
+            } catch (Exception e) {
+                LOG.error("Error when running specify task (messageId: " + messageId + "): " + e.getMessage());
+                e.printStackTrace();
+                completion.complete(null);
+            }
+        }
+
+        private void runSpecify() {
             String specifyMessageId = UUID.randomUUID().toString();
             String[] sm = routingKey.split("\\.");
             String clName = sm[1];
-            String specificClassName = clName;      //origin class
             if (endpointManager.isClassNameExtendable(clName)) {
+                String cached = endpointManager.getSpecifyCache().get(identifier, clName);
+                if (cached != null) {
+                    LOG.debug("SpecifyTask: Cached specific class for " + clName + " " + identifier + " is " + cached);
+                    trace(transactionId, "specify.cached", messageId, null, submitted);
+                    submitChain(cached);
+                    return;
+                }
 
                 String specifyRoutingKey = "specify." + className; // "specify.<className>
                 String specifyReplyTo = null;
 
-                LOG.debug("SpecifyThread: Create request for specify class " + this.className + " with messageId " + specifyMessageId + " (next messageId is " + messageId + ")");
+                LOG.debug("SpecifyTask: Create request for specify class " + this.className + " with messageId " + specifyMessageId + " (next messageId is " + messageId + ")");
 
                 // identifier is uuid
                 // replyTo is null
 
-                Thread th = new RequestThread(transactionId, specifyMessageId, identifier, specifyReplyTo, specifyRoutingKey, content, new HashMap<String, String>(), new SpecifyResponseThread(transactionId, specifyMessageId, clName), 0, 0);
-                th.start();
-                try {
-                    th.join();
-
-                    specificClassName = endpointManager.getResponse(specifyMessageId);
-
+                RequestTask specifyTask = new RequestTask(transactionId, specifyMessageId, identifier, specifyReplyTo, specifyRoutingKey, content, new HashMap<String, String>(), new SpecifyResponseHandler(transactionId, specifyMessageId, clName), 0, 0);
+                specifyTask.submit().thenAccept(specificClassName -> {
                     if (specificClassName == null) {
                         specificClassName = className;
                     }
-                    LOG.debug("SpecifyThread: Specify response for class " + className + " with messageId " + specifyMessageId + " is " + specificClassName);
-                } catch (InterruptedException e) {
-                }
+                    LOG.debug("SpecifyTask: Specify response for class " + className + " with messageId " + specifyMessageId + " is " + specificClassName);
+                    trace(transactionId, "specify", messageId, null, submitted);
+                    submitChain(specificClassName);
+                });
+            } else {
+                submitChain(clName);        //origin class
             }
+        }
 
-            for (RequestThread chainThread : chainThreads) {
-                chainThread.setRequestClassName(specificClassName);
-                chainThread.start();
+        private void submitChain(String specificClassName) {
+            for (RequestTask chainTask : chainTasks) {
+                chainTask.setRequestClassName(specificClassName);
+                chainTask.submit();
             }
+            completion.complete(specificClassName);
         }
 
-        public void addChainThread(RequestThread th) {
-            chainThreads.add(th);
+        public void addChainTask(RequestTask task) {
+            chainTasks.add(task);
         }
     }
 
@@ -1041,6 +1389,7 @@ public class ReceiverThread extends Thread {
         @Override
         public void run() {
             endpointManager.disconnect();
+            if (sender != null) sender.shutdown();
             LOG.info("Receiver thread gracefully shutdown");
         }
     }
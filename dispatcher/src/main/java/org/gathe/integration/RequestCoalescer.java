@@ -0,0 +1,141 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight of identical requests (routing key, identifier and content).
+ * First request is sent to endpoints, identical requests arriving while it is in flight are attached
+ * to it and get the same result. Flight older than ttl is considered lost and replaced by new one.
+ */
+public class RequestCoalescer {
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final boolean enabled;
+    private final long ttl;
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public RequestCoalescer(boolean enabled, long ttl) {
+        this.enabled = enabled;
+        this.ttl = ttl;
+    }
+
+    public static String key(String routingKey, String identifier, String content) {
+        return routingKey + "\n" + identifier + "\n" + ((content != null) ? content : "");
+    }
+
+    //returns flight led by caller (caller must send request and complete it), null when request is attached to flight;
+    //request without follower (no replyTo) is never coalesced
+    public Flight attach(String key, String identifier, Follower follower) {
+        if (!enabled || follower == null) return new Flight(key, identifier, follower);
+        while (true) {
+            Flight created = new Flight(key, identifier, follower);
+            Flight flight = flights.putIfAbsent(key, created);
+            if (flight == null) return created;
+            synchronized (flight) {
+                if (!flight.closed && System.currentTimeMillis() - flight.started < ttl) {
+                    flight.followers.add(follower);
+                    coalesced.incrementAndGet();
+                    return null;
+                }
+                flight.closed = true;
+            }
+            flights.remove(key, flight);
+        }
+    }
+
+    //closes flight, returns attached requests to be answered with leader result
+    public List<Follower> complete(Flight flight) {
+        synchronized (flight) {
+            flight.closed = true;
+        }
+        flights.remove(flight.key, flight);
+        return flight.followers;
+    }
+
+    //identifier is changed, later requests should not attach to flights started before
+    public void invalidate(String identifier) {
+        if (!enabled || identifier == null) return;
+        Iterator<Flight> iterator = flights.values().iterator();
+        while (iterator.hasNext()) {
+            Flight flight = iterator.next();
+            if (!identifier.equals(flight.identifier)) continue;
+            synchronized (flight) {
+                flight.closed = true;
+            }
+            iterator.remove();
+        }
+    }
+
+    public int getFlights() {
+        return flights.size();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public static class Follower {
+        private final String transactionId;
+        private final String messageId;
+        private final String replyTo;
+
+        public Follower(String transactionId, String messageId, String replyTo) {
+            this.transactionId = transactionId;
+            this.messageId = messageId;
+            this.replyTo = replyTo;
+        }
+
+        public String getTransactionId() {
+            return transactionId;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public String getReplyTo() {
+            return replyTo;
+        }
+    }
+
+    public static class Flight {
+        private final String key;
+        private final String identifier;
+        private final Follower leader;
+        private final long started = System.currentTimeMillis();
+        private final ArrayList<Follower> followers = new ArrayList<>();
+        private boolean closed;
+
+        private Flight(String key, String identifier, Follower leader) {
+            this.key = key;
+            this.identifier = identifier;
+            this.leader = leader;
+        }
+
+        //requester of the request sent to endpoints, null when it waits for no reply
+        public Follower getLeader() {
+            return leader;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.gathe.integration;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Created by dmitrii on 19.03.14.
+ */
+public abstract class ResponseHandler implements ExecutionEngine.Rejectable {
+    protected final String transactionId;
+    protected final String messageId;
+    private final AtomicBoolean dispatched = new AtomicBoolean(false);
+    private final CompletableFuture<String> completion = new CompletableFuture<>();
+    protected InFlightRequest request;
+    private Logger LOG = Logger.getLogger(this.getClass());
+
+    public ResponseHandler(String transactionId, String messageId) {
+        this.transactionId = transactionId;
+        this.messageId = messageId;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    void setRequest(InFlightRequest request) {
+        this.request = request;
+    }
+
+    //completed with handler result (null on failure), chained requests continue from here
+    public CompletableFuture<String> getCompletion() {
+        return completion;
+    }
+
+    //response may be completed by last endpoint or by timeout, only first one is handled
+    public boolean dispatch(Executor executor) {
+        if (!dispatched.compareAndSet(false, true)) return false;
+        executor.execute(this);
+        return true;
+    }
+
+    //called for every accepted response as it arrives, before handle
+    protected void onResponse(String endpointName, String content) {
+    }
+
+    protected abstract String handle() throws Exception;
+
+    //handler is not run, chained requests continue as after failure
+    @Override
+    public void rejected() {
+        LOG.error("Response handler " + messageId + " is rejected by execution engine");
+        completion.complete(null);
+    }
+
+    @Override
+    public final void run() {
+        String result = null;
+        try {
+            result = handle();
+        } catch (Exception e) {
+            LOG.error("Error when handling response " + messageId + ": " + e.getMessage());
+        } finally {
+            completion.complete(result);
+        }
+    }
+}
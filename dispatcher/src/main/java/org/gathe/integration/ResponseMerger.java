@@ -18,118 +18,189 @@ package org.gathe.integration;
  */
 
 import org.apache.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.StringReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+/**
+ * Merges get responses of endpoints into one object. Every response is read with StAX into a compact tree
+ * (element name, last non-blank text, child elements), trees are merged into the result by element path
+ * (first non-blank text wins) and the result is written directly as XML text.
+ */
 public class ResponseMerger {
     private Logger LOG = Logger.getLogger(this.getClass());
     ArrayList<String> responses = new ArrayList<>();
 
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    static {
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        try {
+            //cdata section is a separate node (ignored when merging text), as it was in DOM
+            inputFactory.setProperty("http://java.sun.com/xml/stream/properties/report-cdata-event", true);
+        } catch (IllegalArgumentException e) {
+            //other StAX implementation
+        }
+    }
+
     public ResponseMerger(ArrayList<String> responses) {
         this.responses = responses;
 
         LOG.debug("Merging xml response");
         LOG.debug("Length=" + responses.size());
-        for (int i = 0; i < responses.size(); i++) {
-            LOG.debug("Data[" + i + "]=" + responses.get(i));
+        if (LOG.isDebugEnabled()) {
+            for (int i = 0; i < responses.size(); i++) {
+                LOG.debug("Data[" + i + "]=" + responses.get(i));
+            }
         }
     }
 
     //todo: ACL, Priority
-    public void parseXMLOneLevel(Element rootEntry, Document newDocument, Element newDocumentParentElement, String newPath) {
-        NodeList subNodes = rootEntry.getChildNodes();
-
-        HashMap<String, Element> newSubNodesEntries = new HashMap<>();
-        NodeList newSubNodes = newDocumentParentElement.getChildNodes();
-        for (int i = 0; i < newSubNodes.getLength(); i++) {
-            if (newSubNodes.item(i).getNodeType() == Node.ELEMENT_NODE)
-                newSubNodesEntries.put(newSubNodes.item(i).getNodeName(), (Element) newSubNodes.item(i));
+    private void merge(Parsed source, Merged target) {
+        if (source.text != null && target.text == null) {
+            target.text = source.text;
+            target.textPosition = target.children.size();
         }
-
-        String textContent = null;
-        for (int i = 0; i < subNodes.getLength(); i++) {
-            if (subNodes.item(i).getNodeType() != Node.TEXT_NODE) continue;
-            Node item = (Node) subNodes.item(i);
-            LOG.debug("Node: " + item.getNodeName() + " text: " + item.getTextContent());
-            if (item.getTextContent().trim().length() != 0) textContent = item.getTextContent();
+        //elements created here don't become merge targets for next children of the same source
+        ArrayList<Merged> created = null;
+        for (Parsed child : source.children) {
+            Merged newParent = target.byName.get(child.name);
+            if (newParent == null) {
+                newParent = new Merged(child.name);
+                target.children.add(newParent);
+                if (created == null) created = new ArrayList<>();
+                created.add(newParent);
+            }
+            merge(child, newParent);
+        }
+        if (created != null) {
+            for (Merged child : created) target.byName.put(child.name, child);
         }
+    }
 
-        String previousTextContent = null;
-        for (int i = 0; i < newSubNodes.getLength(); i++) {
-            if (newSubNodes.item(i).getNodeType() != Node.TEXT_NODE) continue;
-            Node item = (Node) newSubNodes.item(i);
-            LOG.debug("Node: " + item.getNodeName() + " text: " + item.getTextContent());
-            if (item.getTextContent().trim().length() != 0) previousTextContent = item.getTextContent();
+    //merged object as xml document text, only declaration when there is nothing to merge
+    public String getResponseXML(String className) {
+        StringBuilder result = new StringBuilder(DECLARATION);
+        String lastResponse = null;
+        for (String response : responses) {
+            if (response == null || response.trim().length() == 0) continue;
+            lastResponse = response;
         }
+        if (lastResponse == null) return result.toString();
 
-        if (textContent != null && previousTextContent == null) {
-            newDocumentParentElement.appendChild(newDocument.createTextNode(textContent));
+        Parsed last;
+        try {
+            last = parse(lastResponse);
+        } catch (XMLStreamException e) {
+            LOG.error("Error occured when parsing response XML " + e.getMessage());
+            return result.toString();
         }
 
-        for (int i = 0; i < subNodes.getLength(); i++) {
-            Element newParent = null;
-            String path = newPath + "/" + subNodes.item(i).getNodeName();
-            if (subNodes.item(i).getNodeType() != Node.ELEMENT_NODE) continue;
-            Element oldElement = (Element) subNodes.item(i);
-            if (newSubNodesEntries.keySet().contains(oldElement.getNodeName())) {
-                //overriding xml subtree
-                newParent = newSubNodesEntries.get(oldElement.getNodeName());
-            } else {
-                Element newElement = newDocument.createElement(oldElement.getNodeName());
-                newDocumentParentElement.appendChild(newElement);
-                newParent = newElement;
+        Merged root = new Merged(className);
+        for (String response : responses) {
+            if (response == null || response.trim().length() == 0) continue;      //skip empty
+            try {
+                merge((response == lastResponse) ? last : parse(response), root);
+            } catch (XMLStreamException e) {
+                LOG.error("Error occured when parsing response XML " + e.getMessage());
+                break;
             }
-            LOG.debug("Diving deep to " + subNodes.item(i).getNodeName() + " (newpath: " + path + ")");
-            parseXMLOneLevel((Element) subNodes.item(i), newDocument, newParent, path);
         }
+        write(root, result);
+        return result.toString();
     }
 
-    public Document getResponseXML(String className) {
-        DocumentBuilderFactory responseFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder responseBuilder = null;
-        org.w3c.dom.Document mergedResponse = null;
+    private static Parsed parse(String xml) throws XMLStreamException {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(xml));
+        ArrayDeque<Parsed> path = new ArrayDeque<>();
+        StringBuilder text = new StringBuilder();
+        Parsed root = null;
         try {
-            responseBuilder = responseFactory.newDocumentBuilder();
-            mergedResponse = responseBuilder.newDocument();
-
-            String firstResponse = "";
-            for (String response : responses) {
-                if (response == null || response.trim().length() == 0) continue;
-                firstResponse = response;
-            }
-            DocumentBuilder responseParserBuilder = responseFactory.newDocumentBuilder();
-            Document doc = responseParserBuilder.parse(new InputSource(new StringReader(firstResponse)));
-            if (firstResponse.trim().length() == 0) return mergedResponse;
-
-            Element newRoot = mergedResponse.createElement(className);
-            mergedResponse.appendChild(newRoot);
-
-            for (String response : responses) {
-                Document parse = responseParserBuilder.parse(new InputSource(new StringReader(response)));
-                Element root = parse.getDocumentElement();
-                if (response == null || response.trim().length() == 0) continue;      //skip empty
-                try {
-                    parseXMLOneLevel(root, mergedResponse, newRoot, "");
-                } catch (Exception e) {
-                    LOG.info("Warning. Error when merging");
-                    e.printStackTrace();
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    continue;
+                }
+                //text node ends on any other markup (element, comment, cdata, pi)
+                if (!path.isEmpty() && !isBlank(text)) path.peek().text = text.toString();
+                text.setLength(0);
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    Parsed element = new Parsed(reader.getLocalName());
+                    if (path.isEmpty()) {
+                        root = element;
+                    } else {
+                        path.peek().children.add(element);
+                    }
+                    path.push(element);
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    path.pop();
                 }
             }
+        } finally {
+            reader.close();
+        }
+        if (root == null) throw new XMLStreamException("Root element is missing");
+        return root;
+    }
 
-        } catch (Exception e) {
-            LOG.error("Error occured when parsing response XML " + e.getMessage());
+    private static boolean isBlank(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > ' ') return false;
         }
+        return true;
+    }
 
-        return mergedResponse;
+    private static void write(Merged element, StringBuilder out) {
+        out.append('<').append(element.name);
+        if (element.text == null && element.children.isEmpty()) {
+            out.append("/>");
+            return;
+        }
+        out.append('>');
+        for (int i = 0; i <= element.children.size(); i++) {
+            if (element.text != null && i == element.textPosition) escape(element.text, out);
+            if (i < element.children.size()) write(element.children.get(i), out);
+        }
+        out.append("</").append(element.name).append('>');
+    }
+
+    //escaping of serializer used before (markup chars, CR, C1 controls and supplementary chars as references)
+    private static void escape(String text, StringBuilder out) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '\r':
+                    out.append("&#13;");
+                    break;
+                default:
+                    if (c >= 0x7f && c <= 0x9f) {
+                        out.append("&#").append((int) c).append(';');
+                    } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        out.append("&#").append(Character.toCodePoint(c, text.charAt(++i))).append(';');
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
     }
 
     //todo
@@ -137,4 +208,28 @@ public class ResponseMerger {
         String json = "";
         return json;
     }
+
+    //element of endpoint response
+    private static class Parsed {
+        final String name;
+        String text;
+        final ArrayList<Parsed> children = new ArrayList<>();
+
+        Parsed(String name) {
+            this.name = name;
+        }
+    }
+
+    //element of merged object, text is placed before child element at textPosition
+    private static class Merged {
+        final String name;
+        String text;
+        int textPosition;
+        final ArrayList<Merged> children = new ArrayList<>();
+        final HashMap<String, Merged> byName = new HashMap<>();
+
+        Merged(String name) {
+            this.name = name;
+        }
+    }
 }
@@ -0,0 +1,199 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.*;
+
+/**
+ * Immutable routing snapshot: which endpoints serve request for class (and identifier/check).
+ * Built by EndpointManager on every register/unregister and replaced as a whole, so lookups need no locking.
+ * Class names are compared the same way as the registry scans did before: case insensitive for get, check,
+ * identify and update parents, exact for match and specify.
+ */
+public class RoutingIndex {
+
+    private static final List<String> NONE = Collections.emptyList();
+
+    private final HashMap<String, List<String>> getEndpoints = new HashMap<>();
+    private final HashMap<String, List<String>> matchEndpoints = new HashMap<>();
+    private final HashMap<String, List<String>> specifyEndpoints = new HashMap<>();
+    private final HashMap<String, HashMap<String, List<String>>> identifierEndpoints = new HashMap<>();
+    private final HashMap<String, HashMap<String, List<String>>> checkEndpoints = new HashMap<>();
+    private final HashMap<String, List<String>> updatableExact = new HashMap<>();
+    private final HashMap<String, List<String>> updatableByParent = new HashMap<>();
+    private final HashMap<String, Integer> endpointIndexes = new HashMap<>();
+    private ClassHierarchy hierarchy;
+
+    private RoutingIndex() {
+    }
+
+    public static RoutingIndex build(Map<String, HashMap<String, Object>> endpoints, Map<String, HashMap<String, String>> extendsData, List<String> endpointNames) {
+        RoutingIndex index = new RoutingIndex();
+        HashMap<String, LinkedHashSet<String>> get = new HashMap<>();
+        HashMap<String, LinkedHashSet<String>> match = new HashMap<>();
+        HashMap<String, LinkedHashSet<String>> specify = new HashMap<>();
+        HashMap<String, HashMap<String, LinkedHashSet<String>>> identify = new HashMap<>();
+        HashMap<String, HashMap<String, LinkedHashSet<String>>> check = new HashMap<>();
+        HashMap<String, LinkedHashSet<String>> updatable = new HashMap<>();
+        HashMap<String, LinkedHashSet<String>> updatableParents = new HashMap<>();
+
+        ClassHierarchy hierarchy = ClassHierarchy.build(endpoints, extendsData);
+        index.hierarchy = hierarchy;
+
+        for (Map.Entry<String, HashMap<String, Object>> entry : endpoints.entrySet()) {
+            String endpointName = entry.getKey();
+            HashMap<String, Object> description = entry.getValue();
+
+            HashMap<String, Object> schema = (HashMap<String, Object>) description.get("schema");
+            for (String className : schema.keySet()) add(get, className.toLowerCase(), endpointName);
+
+            for (String className : (ArrayList<String>) description.get("matchable")) add(match, className, endpointName);
+
+            indexIdentifiers(identify, (HashMap<String, HashMap<String, String>>) description.get("identifiers"), endpointName);
+            indexIdentifiers(check, (HashMap<String, HashMap<String, String>>) description.get("checks"), endpointName);
+
+            //specifiable class and all its descendants
+            for (String className : (ArrayList<String>) description.get("specifiables")) {
+                add(specify, className, endpointName);
+                for (String subclass : hierarchy.getSubclasses(className)) add(specify, subclass, endpointName);
+            }
+
+            //updatable class, or parent (by name of this endpoint extends) of updatable class
+            ArrayList<String> updatableClasses = (ArrayList<String>) description.get("updatable");
+            HashSet<String> exact = new HashSet<>();
+            for (String className : updatableClasses) {
+                if (schema.containsKey(className)) exact.add(className);
+            }
+            HashSet<String> parents = new HashSet<>();
+            HashMap<String, String> extData = extendsData.get(endpointName);
+            if (extData != null) {
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    for (Map.Entry<String, String> extend : extData.entrySet()) {
+                        String subclass = extend.getKey();
+                        if (exact.contains(subclass) || parents.contains(subclass.toLowerCase())) {
+                            if (parents.add(extend.getValue().trim().toLowerCase())) changed = true;
+                        }
+                    }
+                }
+            }
+            for (String className : exact) add(updatable, className, endpointName);
+            for (String className : parents) add(updatableParents, className, endpointName);
+        }
+
+        freeze(get, index.getEndpoints);
+        freeze(match, index.matchEndpoints);
+        freeze(specify, index.specifyEndpoints);
+        freeze(updatable, index.updatableExact);
+        freeze(updatableParents, index.updatableByParent);
+        for (Map.Entry<String, HashMap<String, LinkedHashSet<String>>> entry : identify.entrySet()) {
+            HashMap<String, List<String>> frozen = new HashMap<>();
+            freeze(entry.getValue(), frozen);
+            index.identifierEndpoints.put(entry.getKey(), frozen);
+        }
+        for (Map.Entry<String, HashMap<String, LinkedHashSet<String>>> entry : check.entrySet()) {
+            HashMap<String, List<String>> frozen = new HashMap<>();
+            freeze(entry.getValue(), frozen);
+            index.checkEndpoints.put(entry.getKey(), frozen);
+        }
+
+        for (int i = 0; i < endpointNames.size(); i++) {
+            String name = endpointNames.get(i).substring(1);        //strip +/- state mark
+            if (!index.endpointIndexes.containsKey(name)) index.endpointIndexes.put(name, i);
+        }
+        return index;
+    }
+
+    private static void indexIdentifiers(HashMap<String, HashMap<String, LinkedHashSet<String>>> target, HashMap<String, HashMap<String, String>> identifiers, String endpointName) {
+        for (Map.Entry<String, HashMap<String, String>> entry : identifiers.entrySet()) {
+            String className = entry.getKey().toLowerCase();
+            HashMap<String, LinkedHashSet<String>> byIdentifier = target.get(className);
+            if (byIdentifier == null) {
+                byIdentifier = new HashMap<>();
+                target.put(className, byIdentifier);
+            }
+            for (String identifierName : entry.getValue().keySet()) add(byIdentifier, identifierName, endpointName);
+        }
+    }
+
+    private static void add(HashMap<String, LinkedHashSet<String>> map, String key, String value) {
+        LinkedHashSet<String> values = map.get(key);
+        if (values == null) {
+            values = new LinkedHashSet<>();
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private static void freeze(HashMap<String, LinkedHashSet<String>> source, HashMap<String, List<String>> target) {
+        for (Map.Entry<String, LinkedHashSet<String>> entry : source.entrySet()) {
+            target.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        }
+    }
+
+    private static List<String> lookup(HashMap<String, List<String>> map, String key) {
+        if (key == null) return NONE;
+        List<String> result = map.get(key);
+        return (result != null) ? result : NONE;
+    }
+
+    public List<String> getGetEndpoints(String className) {
+        return lookup(getEndpoints, (className != null) ? className.toLowerCase() : null);
+    }
+
+    public List<String> getMatchEndpoints(String className) {
+        return lookup(matchEndpoints, className);
+    }
+
+    public List<String> getSpecifyEndpoints(String className) {
+        return lookup(specifyEndpoints, className);
+    }
+
+    public List<String> getIdentifierEndpoints(String className, String identifierName) {
+        if (className == null) return NONE;
+        HashMap<String, List<String>> byIdentifier = identifierEndpoints.get(className.toLowerCase());
+        return (byIdentifier != null) ? lookup(byIdentifier, identifierName) : NONE;
+    }
+
+    public List<String> getCheckEndpoints(String className, String checkName) {
+        if (className == null) return NONE;
+        HashMap<String, List<String>> byCheck = checkEndpoints.get(className.toLowerCase());
+        return (byCheck != null) ? lookup(byCheck, checkName) : NONE;
+    }
+
+    public List<String> getUpdatableEndpoints(String className) {
+        if (className == null) return NONE;
+        List<String> exact = lookup(updatableExact, className);
+        List<String> byParent = lookup(updatableByParent, className.toLowerCase());
+        if (byParent.isEmpty()) return exact;
+        if (exact.isEmpty()) return byParent;
+        LinkedHashSet<String> result = new LinkedHashSet<>(exact);
+        result.addAll(byParent);
+        return new ArrayList<>(result);
+    }
+
+    public ClassHierarchy getHierarchy() {
+        return hierarchy;
+    }
+
+    public int getEndpointIndex(String endpointName) {
+        Integer index = (endpointName != null) ? endpointIndexes.get(endpointName) : null;
+        return (index != null) ? index : -1;
+    }
+}
@@ -0,0 +1,159 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Static resources of dashboard, kept in memory with content type, ETag and gzip variant computed once.
+ * Only listed assets are served, they are loaded on startup. Served with long cache lifetime and conditional GET
+ * (If-None-Match), gzip variant has its own ETag.
+ */
+public class StaticAssets {
+
+    private static Logger LOG = Logger.getLogger("StaticAssets");
+
+    //filled in constructor, read only after that
+    private final HashMap<String, Asset> assets = new HashMap<>();
+    private final long maxAge;
+
+    public StaticAssets(String[] preloaded, long maxAge) {
+        this.maxAge = maxAge;
+        for (String filename : preloaded) {
+            if (filename.isEmpty()) continue;
+            if (!filename.startsWith("/")) filename = "/" + filename;
+            Asset asset = load(filename);
+            if (asset != null) assets.put(filename, asset);
+        }
+    }
+
+    private static Asset load(String filename) {
+        InputStream stream = StaticAssets.class.getResourceAsStream(filename);
+        if (stream == null) {
+            LOG.error("Static asset " + filename + " not found");
+            return null;
+        }
+        try {
+            return new Asset(filename, IOUtils.toByteArray(stream));
+        } catch (IOException e) {
+            LOG.error("Error when loading static asset " + filename + ": " + e.getMessage());
+            return null;
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    //returns false when asset is not listed
+    public boolean serve(String filename, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Asset asset = assets.get(filename);
+        if (asset == null) return false;
+        String encodings = request.getHeader("Accept-Encoding");
+        boolean gzipped = asset.gzipped != null && encodings != null && encodings.contains("gzip");
+        String etag = gzipped ? asset.gzipEtag : asset.etag;
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "public, max-age=" + maxAge);
+        if (asset.gzipped != null) response.setHeader("Vary", "Accept-Encoding");
+        String match = request.getHeader("If-None-Match");
+        if (match != null && (match.trim().equals("*") || match.contains(etag))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        byte[] content = asset.content;
+        if (gzipped) {
+            response.setHeader("Content-Encoding", "gzip");
+            content = asset.gzipped;
+        }
+        response.setContentType(asset.contentType);
+        response.setContentLength(content.length);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getOutputStream().write(content);
+        return true;
+    }
+
+    private static String contentType(String filename, byte[] content) {
+        String lowerName = filename.toLowerCase();
+        if (lowerName.endsWith(".html") || lowerName.endsWith(".htm")) return "text/html; charset=utf-8";
+        if (lowerName.endsWith(".js")) return "application/javascript; charset=utf-8";
+        if (lowerName.endsWith(".css")) return "text/css; charset=utf-8";
+        String contentType = URLConnection.guessContentTypeFromName(filename);
+        if (contentType == null) {
+            try {
+                contentType = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(content));
+            } catch (IOException e) {
+                //just ignore
+            }
+        }
+        return (contentType != null) ? contentType : "application/octet-stream";
+    }
+
+    private static String etag(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+            StringBuilder etag = new StringBuilder("\"");
+            for (byte b : digest) etag.append(String.format("%02x", b));
+            return etag.append("\"").toString();
+        } catch (NoSuchAlgorithmException e) {
+            return "\"" + Integer.toHexString(Arrays.hashCode(content)) + "\"";
+        }
+    }
+
+    //null when compression doesn't help (images)
+    private static byte[] gzip(String contentType, byte[] content) {
+        if (!contentType.startsWith("text/") && !contentType.contains("javascript") && !contentType.contains("xml") && !contentType.contains("json")) return null;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+            gzip.write(content);
+            gzip.close();
+            byte[] gzipped = buffer.toByteArray();
+            return (gzipped.length < content.length) ? gzipped : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class Asset {
+        final byte[] content;
+        final byte[] gzipped;
+        final String contentType;
+        final String etag;
+        final String gzipEtag;
+
+        Asset(String filename, byte[] content) {
+            this.content = content;
+            this.contentType = contentType(filename, content);
+            this.etag = etag(content);
+            this.gzipEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+            this.gzipped = gzip(contentType, content);
+        }
+    }
+}
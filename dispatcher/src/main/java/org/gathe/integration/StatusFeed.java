@@ -0,0 +1,145 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import org.apache.log4j.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Long-poll feed of dashboard events (/status). Request without new events is suspended (async servlet),
+ * no request thread is kept. One broadcaster thread follows the event ring with its own cursor and answers
+ * suspended clients by batch: clients waiting at broadcaster cursor share one response body.
+ * Client without events is answered with its cursor after poll timeout.
+ */
+public class StatusFeed extends Thread {
+
+    private static Logger LOG = Logger.getLogger("StatusFeed");
+
+    private final EndpointManager endpointManager;
+    private final ConcurrentLinkedQueue<Client> clients = new ConcurrentLinkedQueue<>();
+    private final long pollTimeout;
+    private volatile boolean stopped = false;
+
+    public StatusFeed(EndpointManager endpointManager, long pollTimeout) {
+        super("StatusFeed");
+        setDaemon(true);
+        this.endpointManager = endpointManager;
+        this.pollTimeout = pollTimeout;
+    }
+
+    //events after cursor (negative cursor means ring head): answered immediately when there are any, suspended otherwise
+    public void poll(HttpServletRequest request, HttpServletResponse response, long next) {
+        long head = endpointManager.getRingHead();
+        if (next < 0) next = head;
+        if (head > next) {
+            write(response, read(next));
+            return;
+        }
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);            //expired by broadcaster
+        Client client = new Client(async, next, System.currentTimeMillis() + pollTimeout);
+        clients.add(client);
+        //event published while client was suspended may be already broadcast
+        if (endpointManager.getRingHead() > next && clients.remove(client)) answer(client, read(next));
+    }
+
+    public int getClients() {
+        return clients.size();
+    }
+
+    public void shutdown() {
+        stopped = true;
+    }
+
+    private String read(long cursor) {
+        return endpointManager.join(endpointManager.getMessages(cursor), "\n");
+    }
+
+    private void write(HttpServletResponse response, String body) {
+        try {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println(body);
+        } catch (Exception e) {
+            //client is gone
+        }
+    }
+
+    private void answer(Client client, String body) {
+        write((HttpServletResponse) client.async.getResponse(), body);
+        try {
+            client.async.complete();
+        } catch (IllegalStateException e) {
+            //already completed by container
+        }
+    }
+
+    @Override
+    public void run() {
+        long cursor = endpointManager.getRingHead();
+        while (!stopped) {
+            try {
+                endpointManager.awaitMessages(cursor, 1000);        //wakes each second to expire clients
+                long head = endpointManager.getRingHead();
+                if (clients.isEmpty()) {
+                    cursor = head;
+                    continue;
+                }
+                long batchStart = cursor;
+                String batch = null;
+                if (head > cursor) {
+                    String[] messages = endpointManager.getMessages(cursor);
+                    batch = endpointManager.join(messages, "\n");
+                    cursor = Long.parseLong(messages[0]);
+                }
+                long now = System.currentTimeMillis();
+                Iterator<Client> iterator = clients.iterator();
+                while (iterator.hasNext()) {
+                    Client client = iterator.next();
+                    String body;
+                    if (client.cursor < head) {
+                        body = (client.cursor == batchStart && batch != null) ? batch : read(client.cursor);
+                    } else if (now >= client.deadline) {
+                        body = "" + client.cursor;
+                    } else {
+                        continue;
+                    }
+                    if (clients.remove(client)) answer(client, body);
+                }
+            } catch (Exception e) {
+                LOG.error("Error when broadcasting status: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class Client {
+        final AsyncContext async;
+        final long cursor;
+        final long deadline;
+
+        Client(AsyncContext async, long cursor, long deadline) {
+            this.async = async;
+            this.cursor = cursor;
+            this.deadline = deadline;
+        }
+    }
+}
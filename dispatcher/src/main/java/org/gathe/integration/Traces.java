@@ -0,0 +1,203 @@
+package org.gathe.integration;
+
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timings of recent transactions: spans (stage, messageId, endpoint, start, end) keyed by transactionId.
+ * Buffer is bounded, the oldest transaction is dropped when it is full and spans over limit are only counted.
+ * Spans may nest (specify covers specify.queue, specify.send, specify.response and specify.merge).
+ * There is no global lock: spans of one transaction are synchronized on its trace only.
+ */
+public class Traces {
+
+    private final boolean enabled;
+    private final int capacity;
+    private final int maxSpans;
+    private final ConcurrentHashMap<String, Trace> traces = new ConcurrentHashMap<>();
+    //transactionIds in order of first span, the oldest is dropped when buffer is full
+    private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Traces(boolean enabled, int capacity, int maxSpans) {
+        this.enabled = enabled && capacity > 0;
+        this.capacity = capacity;
+        this.maxSpans = maxSpans;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    //endpointName is null for dispatcher stages
+    public void span(String transactionId, String stage, String messageId, String endpointName, long start, long end) {
+        if (!enabled || transactionId == null || transactionId.isEmpty()) return;
+        Trace trace = traces.get(transactionId);
+        if (trace == null) {
+            Trace created = new Trace(transactionId);
+            trace = traces.putIfAbsent(transactionId, created);
+            if (trace == null) {
+                trace = created;
+                order.add(transactionId);
+                if (count.incrementAndGet() > capacity) evict();
+            }
+        }
+        trace.add(new Span(stage, messageId, endpointName, start, end), maxSpans);
+    }
+
+    private void evict() {
+        String eldest = order.poll();
+        if (eldest == null) return;
+        traces.remove(eldest);
+        count.decrementAndGet();
+    }
+
+    public int size() {
+        return traces.size();
+    }
+
+    //the slowest transactions first, as json array
+    public String getSlowest(int limit) {
+        //durations are taken once, traces may grow while sorting
+        final HashMap<Trace, Long> durations = new HashMap<>();
+        for (Trace trace : traces.values()) durations.put(trace, trace.getDuration());
+        ArrayList<Trace> sorted = new ArrayList<>(durations.keySet());
+        Collections.sort(sorted, new Comparator<Trace>() {
+            @Override
+            public int compare(Trace a, Trace b) {
+                return Long.compare(durations.get(b), durations.get(a));
+            }
+        });
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < sorted.size() && i < limit; i++) {
+            if (i > 0) json.append(",\n");
+            sorted.get(i).toJson(json);
+        }
+        return json.append("]").toString();
+    }
+
+    //null when transaction is unknown (or already dropped)
+    public String get(String transactionId) {
+        Trace trace = traces.get(transactionId);
+        if (trace == null) return null;
+        StringBuilder json = new StringBuilder();
+        trace.toJson(json);
+        return json.toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        json.append('"');
+    }
+
+    private static class Trace {
+        final String transactionId;
+        final ArrayList<Span> spans = new ArrayList<>();
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        int dropped = 0;
+
+        Trace(String transactionId) {
+            this.transactionId = transactionId;
+        }
+
+        synchronized void add(Span span, int maxSpans) {
+            if (span.start < start) start = span.start;
+            if (span.end > end) end = span.end;
+            if (spans.size() < maxSpans) spans.add(span);
+            else dropped++;
+        }
+
+        synchronized long getDuration() {
+            return end - start;
+        }
+
+        synchronized void toJson(StringBuilder json) {
+            ArrayList<Span> sorted = new ArrayList<>(spans);
+            Collections.sort(sorted, new Comparator<Span>() {
+                @Override
+                public int compare(Span a, Span b) {
+                    return Long.compare(a.start, b.start);
+                }
+            });
+            //total time by stage, in order of first appearance
+            LinkedHashMap<String, Long> stages = new LinkedHashMap<>();
+            json.append("{\"transactionId\":");
+            appendString(json, transactionId);
+            json.append(",\"start\":").append(start).append(",\"duration\":").append(end - start);
+            json.append(",\"dropped\":").append(dropped).append(",\"spans\":[");
+            for (int i = 0; i < sorted.size(); i++) {
+                Span span = sorted.get(i);
+                Long total = stages.get(span.stage);
+                stages.put(span.stage, ((total != null) ? total : 0) + span.end - span.start);
+                if (i > 0) json.append(",");
+                json.append("{\"stage\":");
+                appendString(json, span.stage);
+                json.append(",\"messageId\":");
+                appendString(json, span.messageId);
+                json.append(",\"endpoint\":");
+                appendString(json, span.endpointName);
+                json.append(",\"offset\":").append(span.start - start).append(",\"duration\":").append(span.end - span.start).append("}");
+            }
+            json.append("],\"stages\":{");
+            boolean first = true;
+            for (Map.Entry<String, Long> stage : stages.entrySet()) {
+                if (!first) json.append(",");
+                first = false;
+                appendString(json, stage.getKey());
+                json.append(":").append(stage.getValue());
+            }
+            json.append("}}");
+        }
+    }
+
+    private static class Span {
+        final String stage;
+        final String messageId;
+        final String endpointName;
+        final long start;
+        final long end;
+
+        Span(String stage, String messageId, String endpointName, long start, long end) {
+            this.stage = stage;
+            this.messageId = messageId;
+            this.endpointName = endpointName;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
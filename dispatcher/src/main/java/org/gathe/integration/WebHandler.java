@@ -17,7 +17,6 @@ package org.gathe.integration;
  @Author Dmitrii Zolotov <zolotov@gathe.org>, Tikhon Tagunov <tagunov@gathe.org>
  */
 
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
@@ -26,20 +25,24 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
 
 public class WebHandler extends AbstractHandler {
 
-    public static ConcurrentHashMap<String, Response> semaphores = new ConcurrentHashMap<>();
     private EndpointManager endpointManager;
+    private StatusFeed statusFeed;
+    private StaticAssets staticAssets;
 
     private Logger LOG = Logger.getLogger(this.getClass());
 
     public WebHandler(EndpointManager endpointManager) {
         this.endpointManager = endpointManager;
+        statusFeed = new StatusFeed(endpointManager, 60000);
+        statusFeed.start();
+        DispatcherConfig config = endpointManager.getConfig();
+        staticAssets = new StaticAssets(config.getString("static.assets", "dashboard.html,script.js,cloud.png").split(","), config.getLong("static.max-age", 86400));
         LOG.info("Web Server thread initialized");
     }
 
@@ -58,62 +61,213 @@ public class WebHandler extends AbstractHandler {
             return;
         }
 
+        if (target.equalsIgnoreCase("/engine")) {
+            ExecutionEngine engine = endpointManager.getEngine();
+            response.setContentType("text/plain; charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_OK);
+            baseRequest.setHandled(true);
+            response.getWriter().println("mode:" + engine.getMode());
+            response.getWriter().println("queue:" + engine.getQueueDepth());
+            response.getWriter().println("active:" + engine.getActiveTasks());
+            response.getWriter().println("completed:" + engine.getCompletedTasks());
+            response.getWriter().println("rejected:" + engine.getRejectedTasks());
+            response.getWriter().println("timeouts:" + endpointManager.getPendingTimeouts());
+            response.getWriter().println("inflight:" + endpointManager.getInFlightCount());
+            response.getWriter().println("status.clients:" + statusFeed.getClients());
+            response.getWriter().println("breakers.open:" + endpointManager.getBreakers().getOpen().size());
+            ReceiverThread receiver = endpointManager.getReceiver();
+            if (receiver != null && receiver.getChunkAssembler() != null) {
+                ChunkAssembler chunks = receiver.getChunkAssembler();
+                response.getWriter().println("received:" + receiver.getQueueDepth());
+                response.getWriter().println("chunks.pending:" + chunks.getPending());
+                response.getWriter().println("chunks.buffered:" + chunks.getBufferedSize());
+                response.getWriter().println("chunks.completed:" + chunks.getCompleted());
+                response.getWriter().println("chunks.evicted:" + chunks.getEvicted());
+                response.getWriter().println("chunks.rejected:" + chunks.getRejected());
+                response.getWriter().println("chunks.latency.avg:" + chunks.getAverageLatency());
+                response.getWriter().println("chunks.latency.max:" + chunks.getMaxLatency());
+                ChunkedSender sender = receiver.getSender();
+                response.getWriter().println("sender.queue:" + sender.getQueueDepth());
+                response.getWriter().println("sender.messages:" + sender.getSentMessages());
+                response.getWriter().println("sender.chunks:" + sender.getSentChunks());
+                response.getWriter().println("sender.failures:" + sender.getFailures());
+            }
+            if (receiver != null) {
+                response.getWriter().println("coalesce.flights:" + receiver.getCoalescer().getFlights());
+                response.getWriter().println("coalesce.attached:" + receiver.getCoalescer().getCoalesced());
+                response.getWriter().println("match.cursors:" + receiver.getMatchCursors().size());
+            }
+            ObjectCache specifyCache = endpointManager.getSpecifyCache();
+            response.getWriter().println("specify.cached:" + specifyCache.size());
+            response.getWriter().println("specify.hits:" + specifyCache.getHits());
+            response.getWriter().println("specify.misses:" + specifyCache.getMisses());
+            ObjectCache getCache = endpointManager.getGetCache();
+            response.getWriter().println("get.cached:" + getCache.size());
+            response.getWriter().println("get.hits:" + getCache.getHits());
+            response.getWriter().println("get.misses:" + getCache.getMisses());
+            IdentifierStore identifiers = endpointManager.getIdentifierStore();
+            if (identifiers != null) {
+                response.getWriter().println("identifiers.cached:" + identifiers.getCacheSize());
+                response.getWriter().println("identifiers.hits:" + identifiers.getHits());
+                response.getWriter().println("identifiers.misses:" + identifiers.getMisses());
+                response.getWriter().println("identifiers.pending:" + identifiers.getPending());
+                response.getWriter().println("identifiers.stored:" + identifiers.getStored());
+            }
+            OperationLog operationLog = endpointManager.getOperationLog();
+            if (operationLog != null) {
+                response.getWriter().println("operations.pending:" + operationLog.getPending());
+                response.getWriter().println("operations.written:" + operationLog.getWritten());
+                response.getWriter().println("operations.dropped:" + operationLog.getDropped());
+            }
+            return;
+        }
+
+        if (target.equalsIgnoreCase("/metrics")) {
+            ExecutionEngine engine = endpointManager.getEngine();
+            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_OK);
+            baseRequest.setHandled(true);
+            PrintWriter out = response.getWriter();
+            Metrics.gauge(out, "gathe_endpoints", "Registered endpoints", endpointManager.enumerateEndpoints().size());
+            Metrics.gauge(out, "gathe_inflight_requests", "Requests waiting for endpoint responses", endpointManager.getInFlightCount());
+            Metrics.gauge(out, "gathe_waiting_endpoints", "Endpoint responses expected by in-flight requests", endpointManager.getWaitingCount());
+            Metrics.gauge(out, "gathe_pending_timeouts", "Scheduled request timeouts", endpointManager.getPendingTimeouts());
+            Metrics.gauge(out, "gathe_breakers_open", "Endpoints cut off by circuit breaker", endpointManager.getBreakers().getOpen().size());
+            Metrics.gauge(out, "gathe_status_clients", "Suspended /status clients", statusFeed.getClients());
+            Metrics.gauge(out, "gathe_engine_queue", "Tasks queued in execution engine", engine.getQueueDepth());
+            Metrics.gauge(out, "gathe_engine_active", "Tasks running in execution engine", engine.getActiveTasks());
+            Metrics.counter(out, "gathe_engine_completed_total", "Tasks completed by execution engine", engine.getCompletedTasks());
+            Metrics.counter(out, "gathe_engine_rejected_total", "Tasks rejected when execution engine queues are full", engine.getRejectedTasks());
+            ReceiverThread receiver = endpointManager.getReceiver();
+            if (receiver != null && receiver.getChunkAssembler() != null) {
+                ChunkAssembler chunks = receiver.getChunkAssembler();
+                Metrics.gauge(out, "gathe_received_queue", "Received messages waiting for workers", receiver.getQueueDepth());
+                Metrics.gauge(out, "gathe_chunks_pending", "Partially assembled messages", chunks.getPending());
+                Metrics.gauge(out, "gathe_chunks_buffered", "Characters of partially assembled messages", chunks.getBufferedSize());
+                Metrics.counter(out, "gathe_chunks_completed_total", "Assembled messages", chunks.getCompleted());
+                Metrics.counter(out, "gathe_chunks_evicted_total", "Partial messages evicted", chunks.getEvicted());
+                Metrics.counter(out, "gathe_chunks_rejected_total", "Chunks rejected by size limits", chunks.getRejected());
+                ChunkedSender sender = receiver.getSender();
+                Metrics.gauge(out, "gathe_sender_queue", "Messages waiting to be sent", sender.getQueueDepth());
+                Metrics.counter(out, "gathe_sender_messages_total", "Messages sent", sender.getSentMessages());
+                Metrics.counter(out, "gathe_sender_chunks_total", "Chunks sent", sender.getSentChunks());
+                Metrics.counter(out, "gathe_sender_failures_total", "Messages failed to send", sender.getFailures());
+            }
+            if (receiver != null) {
+                Metrics.gauge(out, "gathe_coalesce_flights", "Coalesced requests in flight", receiver.getCoalescer().getFlights());
+                Metrics.counter(out, "gathe_coalesce_attached_total", "Requests attached to in-flight ones", receiver.getCoalescer().getCoalesced());
+                Metrics.gauge(out, "gathe_match_cursors", "Open match cursors", receiver.getMatchCursors().size());
+            }
+            ObjectCache specifyCache = endpointManager.getSpecifyCache();
+            Metrics.gauge(out, "gathe_specify_cached", "Objects in specify cache", specifyCache.size());
+            Metrics.counter(out, "gathe_specify_hits_total", "Specify cache hits", specifyCache.getHits());
+            Metrics.counter(out, "gathe_specify_misses_total", "Specify cache misses", specifyCache.getMisses());
+            ObjectCache getCache = endpointManager.getGetCache();
+            Metrics.gauge(out, "gathe_get_cached", "Objects in get cache", getCache.size());
+            Metrics.counter(out, "gathe_get_hits_total", "Get cache hits", getCache.getHits());
+            Metrics.counter(out, "gathe_get_misses_total", "Get cache misses", getCache.getMisses());
+            IdentifierStore identifiers = endpointManager.getIdentifierStore();
+            if (identifiers != null) {
+                Metrics.gauge(out, "gathe_identifiers_cached", "Identifiers in cache", identifiers.getCacheSize());
+                Metrics.counter(out, "gathe_identifiers_hits_total", "Identifier cache hits", identifiers.getHits());
+                Metrics.counter(out, "gathe_identifiers_misses_total", "Identifier cache misses", identifiers.getMisses());
+                Metrics.gauge(out, "gathe_identifiers_pending", "Identifiers waiting to be stored", identifiers.getPending());
+                Metrics.counter(out, "gathe_identifiers_stored_total", "Identifiers stored", identifiers.getStored());
+            }
+            OperationLog operationLog = endpointManager.getOperationLog();
+            if (operationLog != null) {
+                Metrics.gauge(out, "gathe_operations_pending", "Operations waiting to be logged", operationLog.getPending());
+                Metrics.counter(out, "gathe_operations_written_total", "Operations logged", operationLog.getWritten());
+                Metrics.counter(out, "gathe_operations_dropped_total", "Operations not logged", operationLog.getDropped());
+            }
+            endpointManager.getMetrics().write(out);
+            return;
+        }
+
+        if (target.equalsIgnoreCase("/latency")) {
+            LatencyTracker latencies = endpointManager.getLatencies();
+            response.setContentType("text/plain; charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_OK);
+            baseRequest.setHandled(true);
+            //action.endpoint.*, milliseconds
+            for (Map.Entry<String, LatencyHistogram> entry : latencies.getHistograms().entrySet()) {
+                String key = entry.getKey();
+                LatencyHistogram histogram = entry.getValue();
+                response.getWriter().println(key + ".count:" + histogram.getCount());
+                response.getWriter().println(key + ".avg:" + histogram.getAverage());
+                response.getWriter().println(key + ".p50:" + histogram.getPercentile(50));
+                response.getWriter().println(key + ".p90:" + histogram.getPercentile(90));
+                response.getWriter().println(key + ".p99:" + histogram.getPercentile(99));
+                response.getWriter().println(key + ".max:" + histogram.getMax());
+                response.getWriter().println(key + ".timeouts:" + histogram.getTimeouts());
+            }
+            return;
+        }
+
+        if (target.equalsIgnoreCase("/operations")) {
+            OperationLog operationLog = endpointManager.getOperationLog();
+            response.setContentType("text/plain; charset=utf-8");
+            response.setStatus(HttpServletResponse.SC_OK);
+            baseRequest.setHandled(true);
+            long window = 60000;
+            try {
+                if (request.getParameter("window") != null) window = Long.parseLong(request.getParameter("window"));
+            } catch (NumberFormatException e) {
+                //just ignore
+            }
+            if (operationLog == null || window <= 0) return;
+            //endpoint.action.*, rate is per minute
+            for (Map.Entry<String, Long> entry : operationLog.summary(window).entrySet()) {
+                response.getWriter().println(entry.getKey() + ".count:" + entry.getValue());
+                response.getWriter().println(entry.getKey() + ".rate:" + String.format(Locale.ROOT, "%.2f", entry.getValue() * 60000.0 / window));
+            }
+            return;
+        }
+
+        if (target.startsWith("/traces")) {
+            Traces traces = endpointManager.getTraces();
+            response.setContentType("application/json; charset=utf-8");
+            baseRequest.setHandled(true);
+            if (target.length() > "/traces/".length()) {
+                //stages of one transaction
+                String trace = traces.get(target.substring("/traces/".length()));
+                response.setStatus((trace != null) ? HttpServletResponse.SC_OK : HttpServletResponse.SC_NOT_FOUND);
+                response.getWriter().println((trace != null) ? trace : "null");
+                return;
+            }
+            int limit = 20;
+            try {
+                if (request.getParameter("limit") != null) limit = Integer.parseInt(request.getParameter("limit"));
+            } catch (NumberFormatException e) {
+                //just ignore
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println(traces.getSlowest(limit));
+            return;
+        }
+
         if (target.startsWith("/static")) {
             String filename = target.substring("/static".length());
-
-            URL url = getClass().getResource(filename);
-            InputStream stream = getClass().getResourceAsStream(filename);
-            if (stream == null) {
+            baseRequest.setHandled(true);
+            if (!staticAssets.serve(filename, request, response)) {
                 //resource not found
                 response.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 response.getWriter().println("Resource not found");
-                baseRequest.setHandled(true);
-                return;
             }
-            String contentType = URLConnection.guessContentTypeFromStream(stream);
-            response.setContentType(contentType);
-            response.setStatus(HttpServletResponse.SC_OK);
-            baseRequest.setHandled(true);
-            IOUtils.copy(stream, response.getOutputStream());
             return;
         }
 
         if (target.startsWith("/status")) {
-            int next;
+            long next;
             try {
-                next = Integer.parseInt(target.substring(8));
+                next = Long.parseLong(target.substring(8));
             } catch (Exception e) {
                 next = -1;
             }
-            if (next < 0) {
-                next = endpointManager.getRingHead();
-            }
-            String threadName = Thread.currentThread().getName();
-            Response responseObj = new Response();
-            semaphores.put(threadName, responseObj);
-            synchronized (responseObj) {
-                if (endpointManager.getRingHead() == next) {
-                    try {
-                        LOG.debug("Waiting for semaphone " + threadName);
-                        responseObj.wait(60000);
-                    } catch (InterruptedException e) {
-                        LOG.debug("Timeout");
-                    }
-                }
-                //LOG.debug("Result is "+responseObj.getResponse());
-                LOG.debug("Messages from " + next + " to " + endpointManager.getRingHead());
-                String[] responses = endpointManager.getMessages(next);
-                for (String resp : responses) {
-                    LOG.debug(resp);
-                }
-                String responseStr = endpointManager.join(responses, "\n");
-                response.setStatus(HttpServletResponse.SC_OK);
-//                response.getWriter().println("");
-                response.getWriter().println(responseStr);
-                semaphores.remove(threadName);
-                baseRequest.setHandled(true);
-                return;
-            }
+            LOG.debug("Messages after " + next);
+            baseRequest.setHandled(true);
+            statusFeed.poll(request, response, next);
+            return;
         }
 
         response.setContentType("text/html; charset=utf-8");